@@ -164,6 +164,7 @@ dependencies {
 
     implementation("com.caverock:androidsvg:1.4")
     implementation("com.github.bumptech.glide:glide:4.13.2")
+    implementation("com.github.bumptech.glide:okhttp3-integration:4.13.2")
     implementation("com.github.megatronking.stringfog:xor:5.0.0")
     implementation("com.google.android.material:material:1.9.0")
     implementation("com.google.code.gson:gson:2.10.1")
@@ -29,6 +29,7 @@ import com.firefly.oshe.lunli.GlobalInterface.imageHelper.ImagePicker
 import com.firefly.oshe.lunli.GlobalInterface.imageHelper.ImageSelectionManager
 import com.firefly.oshe.lunli.Tools.ShowToast
 import com.firefly.oshe.lunli.client.Client
+import com.firefly.oshe.lunli.client.SupaBase.PollConditions
 import com.firefly.oshe.lunli.data.UserData
 import com.firefly.oshe.lunli.data.UserDataPref
 import com.firefly.oshe.lunli.data.UserInformation
@@ -95,6 +96,7 @@ class MainActivity : Activity() {
  */
 
         SettingsRegistry.initialize(this)
+        PollConditions.init(this)
 
         mainScope.launch {
             val settings = SettingsRegistry.get()
@@ -108,7 +110,7 @@ class MainActivity : Activity() {
 
             interaction = Interaction(context)
             backgroundManager = BackgroundManager(context)
-            client = Client(context)
+            client = Client.getInstance(context)
             userDataPref = UserDataPref(context)
             imagePicker = ImagePicker(this@MainActivity)
             updateLauncher = UpdateLauncher(context)
@@ -136,10 +138,12 @@ class MainActivity : Activity() {
 
     override fun onPause() {
         super.onPause()
+        PollConditions.setForeground(false)
     }
 
     override fun onResume() {
         super.onResume()
+        PollConditions.setForeground(true)
         if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.R) {
             hasAllFilesPermission = Environment.isExternalStorageManager()
             if (!hasAllFilesPermission && !isNoticedAllFilesPermissionMissing) {
@@ -0,0 +1,45 @@
+package com.firefly.oshe.lunli.client;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 单个接口的缓存策略, 通过 Request.tag 传递给 Client 的条件请求拦截器.
+ */
+public final class CachePolicy {
+    public static final CachePolicy NO_STORE = new CachePolicy(false, 0);
+    public static final CachePolicy REVALIDATE = new CachePolicy(true, 0);
+
+    private final boolean store;
+    private final long maxAgeMillis;
+
+    private CachePolicy(boolean store, long maxAgeMillis) {
+        this.store = store;
+        this.maxAgeMillis = maxAgeMillis;
+    }
+
+    /**
+     * 在 maxAge 内直接使用本地内容, 过期后再以 If-None-Match 向服务器校验.
+     */
+    public static CachePolicy maxAge(long duration, TimeUnit unit) {
+        return new CachePolicy(true, unit.toMillis(duration));
+    }
+
+    public boolean isStore() {
+        return store;
+    }
+
+    public long getMaxAgeMillis() {
+        return maxAgeMillis;
+    }
+
+    boolean isFresh(ValidatorCache.Entry entry) {
+        return store && maxAgeMillis > 0
+                && System.currentTimeMillis() - entry.storedAt < maxAgeMillis;
+    }
+
+    @Override
+    public String toString() {
+        if (!store) return "CachePolicy{no-store}";
+        return "CachePolicy{max-age=" + maxAgeMillis + "ms, revalidate}";
+    }
+}
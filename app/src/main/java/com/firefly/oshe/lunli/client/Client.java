@@ -9,21 +9,35 @@ import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
 
+import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.net.URLEncoder;
 import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
-import okhttp3.Cache;
 import okhttp3.Call;
-import okhttp3.CacheControl;
+import okhttp3.Callback;
 import okhttp3.Interceptor;
 import okhttp3.MediaType;
 import okhttp3.OkHttpClient;
+import okhttp3.Protocol;
 import okhttp3.Request;
 import okhttp3.RequestBody;
 import okhttp3.Response;
@@ -35,87 +49,137 @@ public class Client {
     private final ExecutorService executor;
     private final Handler mainHandler;
     private final String API_BASE;
-    private final ConcurrentHashMap<String, Call> ongoingCalls = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, RequestHandle> ongoingRequests = new ConcurrentHashMap<>();
+    private final AtomicLong requestCounter = new AtomicLong();
+    private final ValidatorCache validatorCache;
+    private final Map<String, CachePolicy> cachePolicies = new ConcurrentHashMap<>();
+    private volatile CachePolicy defaultCachePolicy = CachePolicy.REVALIDATE;
+    private volatile String defaultBranch;
+
+    private static volatile Client instance;
+
+    private static final ShaCache SHA_CACHE = new ShaCache();
+    private static final SingleFlight SINGLE_FLIGHT = new SingleFlight();
+    // 限流状态按主机记录
+    private static final RequestScheduler SCHEDULER = new RequestScheduler(3);
+
+    private static final int DEFAULT_PARALLELISM = 6;
+    private static final long DEFAULT_FILE_TIMEOUT_MS = 15_000;
+    static final int MAX_BATCH_ATTEMPTS = 3;
+    private static final String CONTENTS_SEGMENT = "/contents";
+    private static final String RAW_MEDIA_TYPE = "application/vnd.github.raw+json";
+    private static final MediaType JSON = MediaType.parse("application/json");
 
     public interface ResultCallback {
         void onSuccess(String content);
         void onFailure(String error);
     }
 
-    public Client(Context context) {
+    public interface MultiFileCallback {
+        void onFile(String fileName, String content);
+        void onFileFailure(String fileName, String error);
+        void onComplete(String content);
+        void onFailure(String error);
+    }
+
+    /**
+     * 进程内唯一的 Client, 连接池, Dispatcher 和线程池由 NetworkStack 持有.
+     */
+    public static Client getInstance(Context context) {
+        Client client = instance;
+        if (client != null) return client;
+        synchronized (Client.class) {
+            if (instance == null) {
+                instance = new Client(NetworkStack.get(context));
+            }
+            return instance;
+        }
+    }
+
+    private Client(NetworkStack stack) {
         String token = Token.TOKEN();
         this.API_BASE = Token.DefaultAPI();
-        int poolSize = Runtime.getRuntime().availableProcessors() + 1;
-        this.executor = Executors.newFixedThreadPool(poolSize);
+        this.executor = stack.executor();
         this.mainHandler = new Handler(Looper.getMainLooper());
+        this.validatorCache = stack.validatorCache();
 
-        this.client = new OkHttpClient.Builder()
-                .cache(new Cache(context.getCacheDir(), 10 * 1024 * 1024))
-                .addInterceptor(new CacheControlInterceptor())
-                .addInterceptor(new RetryInterceptor(3))
+        this.client = stack.client().newBuilder()
+                .addInterceptor(new ConditionalGetInterceptor(validatorCache))
+                .addInterceptor(SCHEDULER.interceptor())
                 .addInterceptor(new AuthInterceptor(token))
                 .addInterceptor(new HttpLoggingInterceptor()
                         .setLevel(HttpLoggingInterceptor.Level.BASIC))
-                .connectTimeout(15, TimeUnit.SECONDS)
-                .readTimeout(30, TimeUnit.SECONDS)
                 .build();
     }
 
-    private static class CacheControlInterceptor implements Interceptor {
-        @Override
-        public Response intercept(Chain chain) throws IOException {
-            Request request = chain.request();
-            Response response = chain.proceed(request);
-
-            if (request.method().equals("GET")) {
-                CacheControl cacheControl = new CacheControl.Builder()
-                        .maxAge(5, TimeUnit.MINUTES)
-                        .build();
-                
-                return response.newBuilder()
-                        .header("Cache-Control", cacheControl.toString())
-                        .build();
-            }
-            
-            return response;
-        }
-    }
+    private static class ConditionalGetInterceptor implements Interceptor {
+        private final ValidatorCache cache;
 
-    private static class RetryInterceptor implements Interceptor {
-        private final int maxRetries;
-        
-        public RetryInterceptor(int maxRetries) {
-            this.maxRetries = maxRetries;
+        public ConditionalGetInterceptor(ValidatorCache cache) {
+            this.cache = cache;
         }
-        
+
         @Override
         public Response intercept(Chain chain) throws IOException {
             Request request = chain.request();
-            Response response = null;
-            IOException exception = null;
-            
-            for (int i = 0; i <= maxRetries; i++) {
-                try {
-                    response = chain.proceed(request);
-                    if (response.isSuccessful()) {
-                        return response;
-                    }
-                } catch (IOException e) {
-                    exception = e;
-                    if (i == maxRetries) {
-                        throw exception;
-                    }
-                }
-                
-                try {
-                    Thread.sleep(1000 * (i + 1));
-                } catch (InterruptedException e) {
-                    Thread.currentThread().interrupt();
-                    throw new IOException("Interrupted during retry", e);
-                }
+            CachePolicy policy = request.tag(CachePolicy.class);
+            if (!request.method().equals("GET") || policy == null || !policy.isStore()) {
+                return chain.proceed(request);
             }
 
-            return response;
+            String url = request.url().toString();
+            ValidatorCache.Entry entry = cache.get(url);
+            if (entry != null && policy.isFresh(entry)) {
+                return cachedResponse(request, null, entry);
+            }
+
+            Request.Builder conditional = request.newBuilder();
+            if (entry != null) {
+                if (entry.etag != null) conditional.header("If-None-Match", entry.etag);
+                if (entry.lastModified != null) conditional.header("If-Modified-Since", entry.lastModified);
+            }
+
+            Response response = chain.proceed(conditional.build());
+            if (response.code() == 304 && entry != null) {
+                response.close();
+                cache.touch(url);
+                return cachedResponse(request, response, entry);
+            }
+
+            String etag = response.header("ETag");
+            String lastModified = response.header("Last-Modified");
+            ResponseBody body = response.body();
+            if (response.code() != 200 || body == null || (etag == null && lastModified == null)) {
+                return response;
+            }
+
+            ValidatorCache.Entry stored;
+            try {
+                MediaType type = body.contentType();
+                stored = cache.put(url, etag, lastModified, null,
+                        type != null ? type.toString() : null, body.source());
+            } finally {
+                response.close();
+            }
+            return cachedResponse(request, response, stored);
+        }
+
+        private Response cachedResponse(Request request, Response network,
+                                        ValidatorCache.Entry entry) throws IOException {
+            MediaType type = entry.contentType != null ? MediaType.parse(entry.contentType) : null;
+            ResponseBody body = ResponseBody.create(entry.source(), type, entry.length());
+
+            Response.Builder builder = network != null
+                    ? network.newBuilder().removeHeader("Content-Length")
+                    : new Response.Builder()
+                        .protocol(Protocol.HTTP_1_1)
+                        .header("X-Client-Cache", "fresh");
+            return builder
+                    .request(request)
+                    .code(200)
+                    .message("OK")
+                    .body(body)
+                    .build();
         }
     }
 
@@ -137,277 +201,1074 @@ public class Client {
         }
     }
 
-    public void uploadData(String path, String fileName, String content, ResultCallback callback) {
-        String requestId = "upload-" + System.currentTimeMillis();
-        executor.execute(() -> {
-            try {
-                String encodedPath = URLEncoder.encode(path, StandardCharsets.UTF_8.name())
-                        .replace("+", "%20");
-                String encodedFileName = URLEncoder.encode(fileName, StandardCharsets.UTF_8.name())
-                        .replace("+", "%20");
-                
-                String apiUrl = String.format("%s/%s/%s.json", API_BASE, encodedPath, encodedFileName);
-
-                String contentBase64 = android.util.Base64.encodeToString(
-                    content.getBytes(StandardCharsets.UTF_8),
-                    android.util.Base64.NO_WRAP
-                );
-
-                JSONObject requestBody = new JSONObject();
-                requestBody.put("message", "Create " + path + ": " + fileName);
-                requestBody.put("content", contentBase64);
-
-                Request request = new Request.Builder()
-                    .url(apiUrl)
-                    .put(RequestBody.create(
-                        requestBody.toString(),
-                        MediaType.parse("application/json")
-                    ))
-                    .build();
-
-                try (Response response = executeRequest(request, requestId)) {
-                    if (!response.isSuccessful()) {
-                        throw new IOException("HTTP " + response.code() + ": " + response.message());
-                    }
-                    notifySuccess(callback, "File uploaded successfully");
+    public String uploadData(String path, String fileName, String content, ResultCallback callback) {
+        return submit("upload", callback, handle -> {
+            try (Response response = executeRequest(uploadRequest(path, fileName, content), handle)) {
+                if (!response.isSuccessful()) {
+                    throw new IOException("HTTP " + response.code() + ": " + response.message());
                 }
-            } catch (Exception e) {
-                notifyFailure(callback, formatError(e));
-            } finally {
-                ongoingCalls.remove(requestId);
+                recordWriteResponse(path, fileName, response);
             }
+            onWriteSucceeded(path);
+            return "File uploaded successfully";
         });
     }
 
-    public void getData(String path, String fileName, ResultCallback callback) {
-        String requestId = "get-" + System.currentTimeMillis();
-        executor.execute(() -> {
+    public String getData(String path, String fileName, ResultCallback callback) {
+        return submit("get", callback, handle -> {
             try {
-                String encodedPath = URLEncoder.encode(path, StandardCharsets.UTF_8.name());
-                String apiUrl = String.format("%s/%s", API_BASE, encodedPath);
-                
-                String json = extractResponseContent(apiUrl, requestId);
-                JSONArray files = new JSONArray(json);
-                String targetFileName = fileName + ".json";
-
-                for (int i = 0; i < files.length(); i++) {
-                    JSONObject file = files.getJSONObject(i);
-                    if ("file".equals(file.getString("type")) 
-                            && targetFileName.equals(file.getString("name"))) {
-                        String downloadUrl = file.getString("download_url");
-                        String content = extractResponseContent(downloadUrl, requestId);
-                        notifySuccess(callback, content);
-                        return;
-                    }
-                }
+                return fetchDirectContent(path, fileName, handle);
+            } catch (FileNotFoundException | RetryLaterException e) {
+                throw e;
+            } catch (IOException | JSONException e) {
+                Log.w("Client", "Direct fetch of " + path + "/" + fileName
+                        + " failed, scanning listing: " + e.getMessage());
+            }
 
-                notifyFailure(callback, "File not found");
-            } catch (Exception e) {
-                notifyFailure(callback, formatError(e));
-            } finally {
-                ongoingCalls.remove(requestId);
+            String content = scanDirectoryContent(path, fileName, handle);
+            if (content == null) {
+                throw new FileNotFoundException(path + "/" + fileName + ".json");
             }
+            return content;
         });
     }
 
-    public void getDir(String path, ResultCallback callback) {
-        String requestId = "dir-" + System.currentTimeMillis();
-        executor.execute(() -> {
-            try {
-                String encodedPath = URLEncoder.encode(path, StandardCharsets.UTF_8.name());
-                String apiUrl = String.format("%s/%s", API_BASE, encodedPath);
-
-                String json = extractResponseContent(apiUrl, requestId);
-                notifySuccess(callback, json);
-            } catch (Exception e) {
-                notifyFailure(callback, formatError(e));
-            } finally {
-                ongoingCalls.remove(requestId);
+    /**
+     * 直接按 path/fileName.json 请求原始内容, 一次往返完成; 404 视为文件不存在.
+     */
+    private String fetchDirectContent(String path, String fileName, RequestHandle handle)
+            throws IOException, JSONException {
+        Request request = directFileRequest(path, fileName);
+        String raw = coalesce("direct:" + request.url(), handle, () -> {
+            try (Response response = executeRequest(request, handle)) {
+                return readDirectBody(response, path, fileName);
             }
         });
+        return decodeFileContent(raw);
     }
 
-    public void getMultipleFiles(String path, List<String> fileNames, ResultCallback callback) {
-        String requestId = "multi-get-" + System.currentTimeMillis();
-        executor.execute(() -> {
-            try {
-                String encodedPath = URLEncoder.encode(path, StandardCharsets.UTF_8.name());
-                String apiUrl = String.format("%s/%s", API_BASE, encodedPath);
-                
-                String json = extractResponseContent(apiUrl, requestId);
-                JSONArray files = new JSONArray(json);
-                
-                JSONObject result = new JSONObject();
-                for (String fileName : fileNames) {
-                    String targetFileName = fileName + ".json";
-                    for (int i = 0; i < files.length(); i++) {
-                        JSONObject file = files.getJSONObject(i);
-                        if ("file".equals(file.getString("type")) 
-                                && targetFileName.equals(file.getString("name"))) {
-                            String downloadUrl = file.getString("download_url");
-                            result.put(fileName, extractResponseContent(downloadUrl, requestId));
-                            break;
-                        }
+    private String scanDirectoryContent(String path, String fileName, RequestHandle handle)
+            throws IOException, JSONException {
+        String name = fileName + ".json";
+        DirectoryListing.Entry file = fetchListing(path, Collections.singleton(name), handle).get(name);
+        if (file == null) return null;
+        return fetchFileContent(path, file.downloadUrl, file.sha, handle);
+    }
+
+    public String getDir(String path, ResultCallback callback) {
+        return submit("dir", callback, handle -> {
+            Request request = dirRequest(path);
+            return coalesce("dir:" + request.url(), handle, () -> {
+                String json = extractResponseContent(request, handle);
+                recordListing(path, json);
+                return json;
+            });
+        });
+    }
+
+    public String getMultipleFiles(String path, List<String> fileNames, ResultCallback callback) {
+        return fetchMultipleFiles(path, fileNames, DEFAULT_PARALLELISM, DEFAULT_FILE_TIMEOUT_MS,
+                new MultiFileCallback() {
+                    @Override
+                    public void onFile(String fileName, String content) { }
+
+                    @Override
+                    public void onFileFailure(String fileName, String error) { }
+
+                    @Override
+                    public void onComplete(String content) {
+                        callback.onSuccess(content);
+                    }
+
+                    @Override
+                    public void onFailure(String error) {
+                        callback.onFailure(error);
                     }
+                });
+    }
+
+    /**
+     * 目录列表只请求一次并建立 文件名→条目 索引, 文件并发下载 (最多 parallelism 个),
+     * 每个文件到达后立即回调 onFile, 全部结束后以 JSON 汇总回调 onComplete.
+     */
+    public String fetchMultipleFiles(String path, List<String> fileNames, int parallelism,
+                                     long fileTimeoutMillis, MultiFileCallback callback) {
+        String requestId = nextRequestId("multi-get");
+        RequestHandle handle = new RequestHandle();
+        ongoingRequests.put(requestId, handle);
+        executor.execute(() -> startMultipleFiles(requestId, handle, path, fileNames, parallelism,
+                fileTimeoutMillis, callback));
+        return requestId;
+    }
+
+    private void startMultipleFiles(String requestId, RequestHandle handle, String path, List<String> fileNames,
+                                    int parallelism, long fileTimeoutMillis, MultiFileCallback callback) {
+        try {
+            Set<String> wanted = new LinkedHashSet<>();
+            for (String fileName : fileNames) {
+                wanted.add(fileName + ".json");
+            }
+            Map<String, DirectoryListing.Entry> index = fetchListing(path, wanted, handle);
+
+            List<FileTask> tasks = new ArrayList<>();
+            for (String fileName : new LinkedHashSet<>(fileNames)) {
+                DirectoryListing.Entry file = index.get(fileName + ".json");
+                if (file != null) {
+                    tasks.add(new FileTask(fileName, file.downloadUrl, file.sha));
                 }
-                
-                notifySuccess(callback, result.toString());
-            } catch (Exception e) {
-                notifyFailure(callback, formatError(e));
-            } finally {
-                ongoingCalls.remove(requestId);
             }
-        });
+
+            new FileFanOut(requestId, handle, path, tasks,
+                    Math.max(1, parallelism), fileTimeoutMillis, callback).start();
+        } catch (RetryLaterException e) {
+            if (handle.resumeLater(() -> executor.execute(() -> startMultipleFiles(requestId, handle, path,
+                    fileNames, parallelism, fileTimeoutMillis, callback)), e.delayMillis)) {
+                return;
+            }
+            ongoingRequests.remove(requestId);
+            mainHandler.post(() -> callback.onFailure(formatError(new IOException("Canceled"))));
+        } catch (Exception e) {
+            ongoingRequests.remove(requestId);
+            String error = formatError(e);
+            mainHandler.post(() -> callback.onFailure(error));
+        }
     }
 
-    public void updateData(String path, String fileName, String newContent, ResultCallback callback) {
-        String requestId = "update-" + System.currentTimeMillis();
-        executor.execute(() -> {
-            try {
-                String encodedPath = URLEncoder.encode(path, StandardCharsets.UTF_8.name())
-                        .replace("+", "%20");
-                String encodedFileName = URLEncoder.encode(fileName, StandardCharsets.UTF_8.name())
-                        .replace("+", "%20");
-                
-                String apiUrl = String.format("%s/%s/%s.json", API_BASE, encodedPath, encodedFileName);
-
-                Request getRequest = new Request.Builder().url(apiUrl).build();
-                String sha;
-                try (Response getResponse = executeRequest(getRequest, requestId)) {
-                    if (!getResponse.isSuccessful()) {
-                        throw new IOException("Failed to get file: HTTP " + getResponse.code());
-                    }
-                    JSONObject fileInfo = new JSONObject(getResponse.body().string());
-                    sha = fileInfo.getString("sha");
+    private static class FileTask {
+        final String fileName;
+        final String downloadUrl;
+        final String sha;
+
+        FileTask(String fileName, String downloadUrl, String sha) {
+            this.fileName = fileName;
+            this.downloadUrl = downloadUrl;
+            this.sha = sha;
+        }
+    }
+
+    private class FileFanOut {
+        private final String requestId;
+        private final RequestHandle handle;
+        private final String path;
+        private final List<FileTask> tasks;
+        private final ArrayDeque<FileTask> pending;
+        private final int parallelism;
+        private final long timeoutMillis;
+        private final MultiFileCallback callback;
+        private final ConcurrentHashMap<String, String> results = new ConcurrentHashMap<>();
+        private final AtomicInteger remaining;
+
+        FileFanOut(String requestId, RequestHandle handle, String path, List<FileTask> tasks,
+                   int parallelism, long timeoutMillis, MultiFileCallback callback) {
+            this.requestId = requestId;
+            this.handle = handle;
+            this.path = path;
+            this.tasks = tasks;
+            this.pending = new ArrayDeque<>(tasks);
+            this.parallelism = parallelism;
+            this.timeoutMillis = timeoutMillis;
+            this.callback = callback;
+            this.remaining = new AtomicInteger(tasks.size());
+        }
+
+        void start() {
+            if (tasks.isEmpty()) {
+                complete();
+                return;
+            }
+            for (int i = 0; i < parallelism; i++) {
+                next();
+            }
+        }
+
+        private void next() {
+            while (true) {
+                FileTask task;
+                synchronized (pending) {
+                    task = pending.poll();
                 }
+                if (task == null) return;
 
-                String contentBase64 = android.util.Base64.encodeToString(
-                    newContent.getBytes(StandardCharsets.UTF_8),
-                    android.util.Base64.NO_WRAP
-                );
-
-                JSONObject requestBody = new JSONObject();
-                requestBody.put("message", "Update " + path + ": " + fileName);
-                requestBody.put("content", contentBase64);
-                requestBody.put("sha", sha);
-
-                Request putRequest = new Request.Builder()
-                    .url(apiUrl)
-                    .put(RequestBody.create(
-                        requestBody.toString(),
-                        MediaType.parse("application/json")
-                    ))
-                    .build();
+                String cached = null;
+                try {
+                    cached = readCachedFile(path, task.downloadUrl, task.sha);
+                } catch (IOException ignored) {
+                }
+                if (cached == null) {
+                    enqueue(task);
+                    return;
+                }
+
+                deliver(task, cached);
+                if (remaining.decrementAndGet() == 0) {
+                    complete();
+                    return;
+                }
+            }
+        }
 
-                try (Response putResponse = executeRequest(putRequest, requestId)) {
-                    if (!putResponse.isSuccessful()) {
-                        throw new IOException("Upload failed: HTTP " + putResponse.code());
+        private void enqueue(FileTask task) {
+            String key = "file:" + task.downloadUrl;
+            SingleFlight.Flight<String> flight = SINGLE_FLIGHT.begin(key);
+            if (flight != null && !flight.isLeader()) {
+                follow(task, flight);
+                return;
+            }
+
+            Request request = downloadRequest(path, task.downloadUrl);
+            attempt(task, key, flight, request, SCHEDULER.newRetry(request));
+        }
+
+        private void attempt(FileTask task, String key, SingleFlight.Flight<String> flight,
+                             Request request, RequestScheduler.RetryState retry) {
+            Call call = client.newCall(request);
+            if (timeoutMillis > 0) call.timeout().timeout(timeoutMillis, TimeUnit.MILLISECONDS);
+            if (!handle.attach(call)) {
+                if (flight != null) SINGLE_FLIGHT.abandon(key, flight);
+                fail(task, "Canceled");
+                return;
+            }
+
+            long startTime = System.currentTimeMillis();
+            call.enqueue(new Callback() {
+                @Override
+                public void onFailure(Call call, IOException e) {
+                    handle.detach(call);
+                    logRequestPerformance(startTime, task.downloadUrl, false);
+                    if (retryLater(task, key, flight, request, retry, null, e)) return;
+                    if (flight != null) settle(key, flight, handle, e);
+                    fail(task, formatError(e));
+                }
+
+                @Override
+                public void onResponse(Call call, Response response) {
+                    handle.detach(call);
+                    logRequestPerformance(startTime, task.downloadUrl, response.isSuccessful());
+                    if (retryLater(task, key, flight, request, retry, response, null)) return;
+                    try {
+                        String content = readBody(response);
+                        recordFileSha(path, task.downloadUrl, task.sha);
+                        if (flight != null) SINGLE_FLIGHT.complete(key, flight, content);
+                        deliver(task, content);
+                        finish();
+                    } catch (IOException e) {
+                        if (flight != null) settle(key, flight, handle, e);
+                        fail(task, formatError(e));
+                    } finally {
+                        response.close();
                     }
-                    notifySuccess(callback, "File updated successfully");
                 }
-            } catch (Exception e) {
-                notifyFailure(callback, formatError(e));
-            } finally {
-                ongoingCalls.remove(requestId);
+            });
+        }
+
+        // 退避期间不占用任何线程, 到时由调度器的定时器重新发起
+        private boolean retryLater(FileTask task, String key, SingleFlight.Flight<String> flight,
+                                   Request request, RequestScheduler.RetryState retry,
+                                   Response response, IOException error) {
+            long delay = handle.isCancelled() ? -1 : retry.nextDelay(response, error);
+            if (delay < 0) return false;
+            if (response != null) response.close();
+            SCHEDULER.schedule(() -> attempt(task, key, flight, request, retry), delay);
+            return true;
+        }
+
+        private void follow(FileTask task, SingleFlight.Flight<String> flight) {
+            CompletableFuture<String> future = flight.future();
+            if (!handle.attach(future)) {
+                fail(task, "Canceled");
+                return;
             }
+            future.whenComplete((content, error) -> {
+                handle.detach(future);
+                if (error == null) {
+                    deliver(task, content);
+                    finish();
+                    return;
+                }
+                Exception cause = unwrap(error);
+                if (cause instanceof SingleFlight.AbandonedException && !handle.isCancelled()) {
+                    enqueue(task);
+                } else {
+                    fail(task, formatError(cause));
+                }
+            });
+        }
+
+        private void deliver(FileTask task, String content) {
+            results.put(task.fileName, content);
+            mainHandler.post(() -> callback.onFile(task.fileName, content));
+        }
+
+        private void fail(FileTask task, String error) {
+            mainHandler.post(() -> callback.onFileFailure(task.fileName, error));
+            finish();
+        }
+
+        private void finish() {
+            if (remaining.decrementAndGet() == 0) {
+                complete();
+            } else {
+                next();
+            }
+        }
+
+        private void complete() {
+            ongoingRequests.remove(requestId);
+            try {
+                JSONObject result = new JSONObject();
+                for (FileTask task : tasks) {
+                    String content = results.get(task.fileName);
+                    if (content != null) result.put(task.fileName, content);
+                }
+                String json = result.toString();
+                mainHandler.post(() -> callback.onComplete(json));
+            } catch (JSONException e) {
+                mainHandler.post(() -> callback.onFailure(e.getMessage()));
+            }
+        }
+    }
+
+    public String updateData(String path, String fileName, String newContent, ResultCallback callback) {
+        return submit("update", callback, handle -> {
+            writeWithSha(path, fileName, handle, "Upload failed",
+                    sha -> updateRequest(path, fileName, newContent, sha));
+            return "File updated successfully";
         });
     }
 
-    public void deleteData(String path, String fileName, ResultCallback callback) {
-        String requestId = "delete-" + System.currentTimeMillis();
-        executor.execute(() -> {
-            try {
-                String encodedPath = URLEncoder.encode(path, StandardCharsets.UTF_8.name())
-                        .replace("+", "%20");
-                String encodedFileName = URLEncoder.encode(fileName, StandardCharsets.UTF_8.name())
-                        .replace("+", "%20");
-
-                String apiUrl = String.format("%s/%s/%s.json", API_BASE, encodedPath, encodedFileName);
-
-                Request getRequest = new Request.Builder().url(apiUrl).build();
-                String sha;
-                try (Response getResponse = executeRequest(getRequest, requestId)) {
-                    if (!getResponse.isSuccessful()) {
-                        throw new IOException("Failed to get file: HTTP " + getResponse.code());
-                    }
-                    JSONObject fileInfo = new JSONObject(getResponse.body().string());
-                    sha = fileInfo.getString("sha");
+    public String deleteData(String path, String fileName, ResultCallback callback) {
+        return submit("delete", callback, handle -> {
+            writeWithSha(path, fileName, handle, "Delete failed",
+                    sha -> deleteRequest(path, fileName, sha));
+            return "File deleted successfully";
+        });
+    }
+
+    private interface ShaWrite {
+        Request build(String sha) throws IOException, JSONException;
+    }
+
+    /**
+     * 优先使用缓存的 sha 直接写入; 仅当服务器以 409/422 拒绝 (sha 已过期) 时才重新获取 sha 并重试一次.
+     */
+    private void writeWithSha(String path, String fileName, RequestHandle handle,
+                              String failure, ShaWrite write) throws IOException, JSONException {
+        String sha = cachedSha(path, fileName);
+        boolean optimistic = sha != null;
+        if (!optimistic) sha = fetchSha(path, fileName, handle);
+
+        while (true) {
+            try (Response response = executeRequest(write.build(sha), handle)) {
+                if (response.isSuccessful()) {
+                    recordWriteResponse(path, fileName, response);
+                    break;
                 }
+                if (!optimistic || !isShaConflict(response.code())) {
+                    throw new IOException(failure + ": HTTP " + response.code());
+                }
+            }
+            onShaConflict(path, fileName);
+            optimistic = false;
+            sha = fetchSha(path, fileName, handle);
+        }
+        onWriteSucceeded(path);
+    }
+
+    private String fetchSha(String path, String fileName, RequestHandle handle)
+            throws IOException, JSONException {
+        try (Response response = executeRequest(shaRequest(path, fileName), handle)) {
+            String sha = readSha(response);
+            recordSha(path, fileName, sha);
+            return sha;
+        }
+    }
 
-                String contentBase64 = android.util.Base64.encodeToString(
-                        sha.getBytes(StandardCharsets.UTF_8),
-                        android.util.Base64.NO_WRAP
-                );
-
-                JSONObject requestBody = new JSONObject();
-                requestBody.put("message", "Delete " + path + ": " + fileName);
-                requestBody.put("content", contentBase64);
-                requestBody.put("sha", sha);
-
-                Request putRequest = new Request.Builder()
-                        .url(apiUrl)
-                        .delete(RequestBody.create(
-                                requestBody.toString(),
-                                MediaType.parse("application/json")
-                        ))
-                        .build();
-
-                try (Response putResponse = executeRequest(putRequest, requestId)) {
-                    if (!putResponse.isSuccessful()) {
-                        throw new IOException("Delete failed: HTTP " + putResponse.code());
+    /**
+     * 多个文件的新建/更新/删除合并为一次提交: 读取分支 → 建树 → 建提交 → 移动分支,
+     * 请求数与文件数量无关. 分支被并发推进 (422) 时基于最新提交重试. 成功时回调新提交的 sha.
+     */
+    public String commitBatch(String message, List<FileChange> changes, ResultCallback callback) {
+        return submit("batch", callback, handle -> {
+            if (changes.isEmpty()) {
+                throw new IllegalArgumentException("No changes to commit");
+            }
+            String branch = defaultBranch;
+            if (branch == null) {
+                try (Response response = executeRequest(repoRequest(), handle)) {
+                    branch = readDefaultBranch(response);
+                }
+            }
+
+            for (int attempt = 1; ; attempt++) {
+                String parent = requestJson(refRequest(branch), handle)
+                        .getJSONObject("object").getString("sha");
+                String baseTree = requestJson(gitCommitRequest(parent), handle)
+                        .getJSONObject("tree").getString("sha");
+                String tree = requestJson(createTreeRequest(baseTree, changes), handle).getString("sha");
+                String commit = requestJson(createCommitRequest(message, tree, parent), handle)
+                        .getString("sha");
+
+                boolean moved;
+                try (Response response = executeRequest(updateRefRequest(branch, commit), handle)) {
+                    moved = response.isSuccessful();
+                    if (!moved && (response.code() != 422 || attempt >= MAX_BATCH_ATTEMPTS)) {
+                        throw new IOException("Batch commit failed: HTTP " + response.code());
                     }
-                    notifySuccess(callback, "File deleted successfully");
                 }
-            } catch (Exception e) {
-                notifyFailure(callback, formatError(e));
-            } finally {
-                ongoingCalls.remove(requestId);
+                if (moved) {
+                    onBatchCommitted(changes);
+                    return commit;
+                }
+                Log.w("Client", "Branch " + branch + " moved during batch commit, retrying");
             }
         });
     }
 
+    private JSONObject requestJson(Request request, RequestHandle handle) throws IOException, JSONException {
+        try (Response response = executeRequest(request, handle)) {
+            return readJson(response);
+        }
+    }
+
     public void cancelRequest(String requestId) {
-        Call call = ongoingCalls.get(requestId);
-        if (call != null) {
-            call.cancel();
-            ongoingCalls.remove(requestId);
+        RequestHandle handle = ongoingRequests.remove(requestId);
+        if (handle != null) {
+            handle.cancel();
         }
     }
 
-    private String extractResponseContent(String apiUrl, String requestId) throws IOException {
-        Response response = null;
+    public void setCachePolicy(String path, CachePolicy policy) {
+        if (policy == null) {
+            cachePolicies.remove(path);
+        } else {
+            cachePolicies.put(path, policy);
+        }
+    }
+
+    public void setDefaultCachePolicy(CachePolicy policy) {
+        this.defaultCachePolicy = policy != null ? policy : CachePolicy.REVALIDATE;
+    }
+
+    public CachePolicy cachePolicyFor(String path) {
+        CachePolicy policy = cachePolicies.get(path);
+        return policy != null ? policy : defaultCachePolicy;
+    }
+
+    public void clearCache() {
+        validatorCache.clear();
+        SHA_CACHE.clear();
+    }
+
+    /**
+     * 命中/未命中计数可用于确认写入前的 GET 是否被省去.
+     */
+    public ShaCache getShaCache() {
+        return SHA_CACHE;
+    }
+
+    /**
+     * 相同URL的并发 GET 是否合并为一次请求, 默认开启; 合并命中计数见 getSingleFlight().
+     */
+    public void setRequestCoalescing(boolean enabled) {
+        SINGLE_FLIGHT.setEnabled(enabled);
+    }
+
+    public SingleFlight getSingleFlight() {
+        return SINGLE_FLIGHT;
+    }
+
+    public RequestScheduler getScheduler() {
+        return SCHEDULER;
+    }
+
+    // 以下为回调接口与协程接口 (ClientCoroutines.kt) 共用的请求构建与解析
+
+    OkHttpClient httpClient() {
+        return client;
+    }
+
+    String nextRequestId(String prefix) {
+        return prefix + "-" + requestCounter.incrementAndGet();
+    }
+
+    Request dirRequest(String path) throws IOException {
+        return new Request.Builder()
+                .url(dirUrl(path))
+                .tag(CachePolicy.class, cachePolicyFor(path))
+                .build();
+    }
+
+    Request directFileRequest(String path, String fileName) throws IOException {
+        return new Request.Builder()
+                .url(fileUrl(path, fileName))
+                .header("Accept", RAW_MEDIA_TYPE)
+                .tag(CachePolicy.class, cachePolicyFor(path))
+                .build();
+    }
+
+    Request downloadRequest(String path, String downloadUrl) {
+        return new Request.Builder()
+                .url(downloadUrl)
+                .tag(CachePolicy.class, cachePolicyFor(path))
+                .build();
+    }
+
+    Request shaRequest(String path, String fileName) throws IOException {
+        return new Request.Builder().url(fileUrl(path, fileName)).build();
+    }
+
+    Request uploadRequest(String path, String fileName, String content) throws IOException, JSONException {
+        JSONObject requestBody = new JSONObject();
+        requestBody.put("message", "Create " + path + ": " + fileName);
+        requestBody.put("content", encodeBase64(content));
+
+        return new Request.Builder()
+                .url(fileUrl(path, fileName))
+                .put(RequestBody.create(requestBody.toString(), JSON))
+                .build();
+    }
+
+    Request updateRequest(String path, String fileName, String newContent, String sha)
+            throws IOException, JSONException {
+        JSONObject requestBody = new JSONObject();
+        requestBody.put("message", "Update " + path + ": " + fileName);
+        requestBody.put("content", encodeBase64(newContent));
+        requestBody.put("sha", sha);
+
+        return new Request.Builder()
+                .url(fileUrl(path, fileName))
+                .put(RequestBody.create(requestBody.toString(), JSON))
+                .build();
+    }
+
+    Request deleteRequest(String path, String fileName, String sha) throws IOException, JSONException {
+        JSONObject requestBody = new JSONObject();
+        requestBody.put("message", "Delete " + path + ": " + fileName);
+        requestBody.put("content", encodeBase64(sha));
+        requestBody.put("sha", sha);
+
+        return new Request.Builder()
+                .url(fileUrl(path, fileName))
+                .delete(RequestBody.create(requestBody.toString(), JSON))
+                .build();
+    }
+
+    String readCachedFile(String path, String downloadUrl, String sha) throws IOException {
+        if (!cachePolicyFor(path).isStore()) return null;
+        ValidatorCache.Entry cached = validatorCache.getIfSha(downloadUrl, sha);
+        return cached != null ? cached.readString() : null;
+    }
+
+    void recordFileSha(String path, String downloadUrl, String sha) {
+        if (cachePolicyFor(path).isStore()) validatorCache.updateSha(downloadUrl, sha);
+    }
+
+    void onWriteSucceeded(String path) throws IOException {
+        validatorCache.remove(dirUrl(path));
+    }
+
+    String cachedSha(String path, String fileName) throws IOException {
+        return SHA_CACHE.get(fileUrl(path, fileName));
+    }
+
+    void recordSha(String path, String fileName, String sha) throws IOException {
+        SHA_CACHE.put(fileUrl(path, fileName), sha);
+    }
+
+    void onShaConflict(String path, String fileName) throws IOException {
+        SHA_CACHE.conflict(fileUrl(path, fileName));
+    }
+
+    /**
+     * PUT 响应的 content.sha 即新 blob 的 sha; DELETE 响应的 content 为 null, 移除缓存.
+     */
+    void recordWriteResponse(String path, String fileName, Response response) throws IOException {
+        String key = fileUrl(path, fileName);
+        ResponseBody body = response.body();
+        String sha = null;
+        if (body != null) {
+            try {
+                JSONObject content = new JSONObject(body.string()).optJSONObject("content");
+                if (content != null) sha = content.optString("sha", null);
+            } catch (JSONException ignored) {
+            }
+        }
+        if (sha != null) {
+            SHA_CACHE.put(key, sha);
+        } else {
+            SHA_CACHE.remove(key);
+        }
+    }
+
+    /**
+     * 从响应流中逐条读取目录列表并顺带记录每个文件的 sha;
+     * wanted 中的文件全部找到后不再读取剩余条目.
+     */
+    Map<String, DirectoryListing.Entry> readListing(String path, Response response, Set<String> wanted)
+            throws IOException {
+        if (!response.isSuccessful()) {
+            throw new IOException("HTTP " + response.code() + ": " + response.message());
+        }
+        ResponseBody body = response.body();
+        if (body == null) {
+            throw new IOException("Response body is null");
+        }
+        return DirectoryListing.index(body.source(), wanted, entry -> {
+            recordListingSha(path, entry);
+            return true;
+        });
+    }
+
+    void recordListing(String path, String json) throws IOException {
+        DirectoryListing.read(json, entry -> {
+            recordListingSha(path, entry);
+            return true;
+        });
+    }
+
+    private void recordListingSha(String path, DirectoryListing.Entry entry) {
+        if (!entry.isFile() || entry.name == null || !entry.name.endsWith(".json")) return;
         try {
-            response = executeRequest(new Request.Builder().url(apiUrl).build(), requestId);
+            SHA_CACHE.put(fileUrl(path, entry.name.substring(0, entry.name.length() - 5)), entry.sha);
+        } catch (IOException ignored) {
+        }
+    }
+
+    // 批量提交使用 git data API, 其地址由 contents API 地址推出
+
+    Request repoRequest() throws IOException {
+        return new Request.Builder().url(repoBase()).build();
+    }
+
+    Request refRequest(String branch) throws IOException {
+        return new Request.Builder().url(repoBase() + "/git/ref/heads/" + branch).build();
+    }
 
-            if (!response.isSuccessful()) {
-                throw new IOException("HTTP " + response.code() + ": " + response.message());
+    Request gitCommitRequest(String sha) throws IOException {
+        return new Request.Builder().url(repoBase() + "/git/commits/" + sha).build();
+    }
+
+    Request createTreeRequest(String baseTree, List<FileChange> changes) throws IOException, JSONException {
+        String prefix = contentsPrefix();
+        JSONArray tree = new JSONArray();
+        for (FileChange change : changes) {
+            JSONObject entry = new JSONObject();
+            entry.put("path", prefix + change.path + "/" + change.fileName + ".json");
+            entry.put("mode", "100644");
+            entry.put("type", "blob");
+            // sha 为 null 表示从树中删除该文件
+            entry.put(change.isDelete() ? "sha" : "content",
+                    change.isDelete() ? JSONObject.NULL : change.content);
+            tree.put(entry);
+        }
+
+        JSONObject requestBody = new JSONObject();
+        requestBody.put("base_tree", baseTree);
+        requestBody.put("tree", tree);
+        return new Request.Builder()
+                .url(repoBase() + "/git/trees")
+                .post(RequestBody.create(requestBody.toString(), JSON))
+                .build();
+    }
+
+    Request createCommitRequest(String message, String tree, String parent) throws IOException, JSONException {
+        JSONObject requestBody = new JSONObject();
+        requestBody.put("message", message);
+        requestBody.put("tree", tree);
+        requestBody.put("parents", new JSONArray().put(parent));
+        return new Request.Builder()
+                .url(repoBase() + "/git/commits")
+                .post(RequestBody.create(requestBody.toString(), JSON))
+                .build();
+    }
+
+    Request updateRefRequest(String branch, String sha) throws IOException, JSONException {
+        JSONObject requestBody = new JSONObject();
+        requestBody.put("sha", sha);
+        requestBody.put("force", false);
+        return new Request.Builder()
+                .url(repoBase() + "/git/refs/heads/" + branch)
+                .patch(RequestBody.create(requestBody.toString(), JSON))
+                .build();
+    }
+
+    String readDefaultBranch(Response response) throws IOException, JSONException {
+        String branch = readJson(response).getString("default_branch");
+        defaultBranch = branch;
+        return branch;
+    }
+
+    String cachedDefaultBranch() {
+        return defaultBranch;
+    }
+
+    /**
+     * 新 blob 的 sha 可在本地算出, 直接写入 sha 缓存; 涉及的目录列表失效.
+     */
+    void onBatchCommitted(List<FileChange> changes) throws IOException {
+        Set<String> paths = new LinkedHashSet<>();
+        for (FileChange change : changes) {
+            String key = fileUrl(change.path, change.fileName);
+            if (change.isDelete()) {
+                SHA_CACHE.remove(key);
+            } else {
+                SHA_CACHE.put(key, change.blobSha());
             }
+            paths.add(change.path);
+        }
+        for (String path : paths) {
+            onWriteSucceeded(path);
+        }
+    }
 
-            ResponseBody body = response.body();
-            if (body == null) {
-                throw new IOException("Response body is null");
+    static JSONObject readJson(Response response) throws IOException, JSONException {
+        return new JSONObject(readBody(response));
+    }
+
+    static boolean isShaConflict(int code) {
+        return code == 409 || code == 422;
+    }
+
+    static String readDirectBody(Response response, String path, String fileName) throws IOException {
+        if (response.code() == 404) {
+            throw new FileNotFoundException(path + "/" + fileName + ".json");
+        }
+        return readBody(response);
+    }
+
+    static String readSha(Response response) throws IOException, JSONException {
+        if (!response.isSuccessful()) {
+            throw new IOException("Failed to get file: HTTP " + response.code());
+        }
+        ResponseBody body = response.body();
+        if (body == null) {
+            throw new IOException("Response body is null");
+        }
+        return new JSONObject(body.string()).getString("sha");
+    }
+
+    static String readBody(Response response) throws IOException {
+        if (!response.isSuccessful()) {
+            throw new IOException("HTTP " + response.code() + ": " + response.message());
+        }
+        ResponseBody body = response.body();
+        if (body == null) {
+            throw new IOException("Response body is null");
+        }
+        return body.string();
+    }
+
+    // 服务器忽略 raw 媒体类型时会返回带 base64 content 的文件元数据
+    static String decodeFileContent(String content) throws JSONException {
+        String trimmed = content.trim();
+        if (!trimmed.startsWith("{")) return content;
+
+        JSONObject json = new JSONObject(trimmed);
+        if ("file".equals(json.optString("type"))
+                && "base64".equals(json.optString("encoding"))
+                && json.has("sha") && json.has("content")) {
+            byte[] bytes = android.util.Base64.decode(json.getString("content"), android.util.Base64.DEFAULT);
+            return new String(bytes, StandardCharsets.UTF_8);
+        }
+        return content;
+    }
+
+    private static String encodeBase64(String content) {
+        return android.util.Base64.encodeToString(
+                content.getBytes(StandardCharsets.UTF_8),
+                android.util.Base64.NO_WRAP
+        );
+    }
+
+    private String dirUrl(String path) throws IOException {
+        String encodedPath = URLEncoder.encode(path, StandardCharsets.UTF_8.name());
+        return String.format("%s/%s", API_BASE, encodedPath);
+    }
+
+    private String repoBase() throws IOException {
+        int index = API_BASE.indexOf(CONTENTS_SEGMENT);
+        if (index < 0) {
+            throw new IOException("Batch commit is not supported by " + API_BASE);
+        }
+        return API_BASE.substring(0, index);
+    }
+
+    // contents API 地址可能指向仓库内的子目录, 树中的路径需要带上它
+    private String contentsPrefix() throws IOException {
+        int index = API_BASE.indexOf(CONTENTS_SEGMENT);
+        if (index < 0) {
+            throw new IOException("Batch commit is not supported by " + API_BASE);
+        }
+        String prefix = API_BASE.substring(index + CONTENTS_SEGMENT.length())
+                .replaceAll("^/+|/+$", "");
+        return prefix.isEmpty() ? "" : prefix + "/";
+    }
+
+    private String fileUrl(String path, String fileName) throws IOException {
+        String encodedPath = URLEncoder.encode(path, StandardCharsets.UTF_8.name())
+                .replace("+", "%20");
+        String encodedFileName = URLEncoder.encode(fileName, StandardCharsets.UTF_8.name())
+                .replace("+", "%20");
+        return String.format("%s/%s/%s.json", API_BASE, encodedPath, encodedFileName);
+    }
+
+    private String fetchFileContent(String path, String downloadUrl, String sha, RequestHandle handle)
+            throws IOException {
+        String cached = readCachedFile(path, downloadUrl, sha);
+        if (cached != null) return cached;
+
+        String content = coalesce("file:" + downloadUrl, handle,
+                () -> extractResponseContent(downloadRequest(path, downloadUrl), handle));
+        recordFileSha(path, downloadUrl, sha);
+        return content;
+    }
+
+    /**
+     * 合并时所有调用方共享完整索引 (各自需要的文件不同, 不能提前停止);
+     * 关闭合并时只读到 wanted 全部找到为止.
+     */
+    private Map<String, DirectoryListing.Entry> fetchListing(String path, Set<String> wanted,
+                                                             RequestHandle handle) throws IOException {
+        Request request = dirRequest(path);
+        if (!SINGLE_FLIGHT.isEnabled()) {
+            try (Response response = executeRequest(request, handle)) {
+                return readListing(path, response, wanted);
+            }
+        }
+        return coalesce("listing:" + request.url(), handle, () -> {
+            try (Response response = executeRequest(request, handle)) {
+                return Collections.unmodifiableMap(readListing(path, response, null));
             }
+        });
+    }
 
-            return body.string();
-        } finally {
-            if (response != null) {
-                response.close();
+    private interface Loader<T> {
+        T load() throws IOException;
+    }
+
+    /**
+     * 相同 key 的并发请求只有 leader 访问网络; leader 被取消时 follower 重新发起请求.
+     */
+    private <T> T coalesce(String key, RequestHandle handle, Loader<T> loader) throws IOException {
+        while (true) {
+            SingleFlight.Flight<T> flight = SINGLE_FLIGHT.begin(key);
+            if (flight == null) return loader.load();
+
+            if (flight.isLeader()) {
+                try {
+                    T value = loader.load();
+                    SINGLE_FLIGHT.complete(key, flight, value);
+                    return value;
+                } catch (IOException | RuntimeException e) {
+                    settle(key, flight, handle, e);
+                    throw e;
+                }
+            }
+
+            CompletableFuture<T> future = flight.future();
+            if (!handle.attach(future)) throw new IOException("Canceled");
+            try {
+                return future.get();
+            } catch (ExecutionException e) {
+                Exception cause = unwrap(e);
+                if (cause instanceof SingleFlight.AbandonedException && !handle.isCancelled()) continue;
+                if (cause instanceof IOException) throw (IOException) cause;
+                if (cause instanceof RuntimeException) throw (RuntimeException) cause;
+                throw new IOException(cause.getMessage(), cause);
+            } catch (CancellationException e) {
+                throw new IOException("Canceled", e);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted", e);
+            } finally {
+                handle.detach(future);
+            }
+        }
+    }
+
+    private static void settle(String key, SingleFlight.Flight<?> flight, RequestHandle handle, Exception e) {
+        // 退避中的 leader 让出, follower 重新竞争, 而不是收到一个只对 leader 有意义的错误
+        if (handle.isCancelled() || e instanceof RetryLaterException) {
+            SINGLE_FLIGHT.abandon(key, flight);
+        } else {
+            SINGLE_FLIGHT.fail(key, flight, e);
+        }
+    }
+
+    private static Exception unwrap(Throwable error) {
+        while ((error instanceof ExecutionException || error instanceof CompletionException)
+                && error.getCause() != null) {
+            error = error.getCause();
+        }
+        if (error instanceof Exception) return (Exception) error;
+        return new IOException(error);
+    }
+
+    private String extractResponseContent(Request request, RequestHandle handle) throws IOException {
+        try (Response response = executeRequest(request, handle)) {
+            return readBody(response);
+        }
+    }
+
+    private interface Operation {
+        String run(RequestHandle handle) throws Exception;
+    }
+
+    /**
+     * 同一次操作内的所有 Call 挂在同一个 handle 上, cancelRequest 可在任意阶段取消.
+     */
+    private static class RequestHandle {
+        private final Set<Call> calls = ConcurrentHashMap.newKeySet();
+        private final Set<Future<?>> waits = ConcurrentHashMap.newKeySet();
+        // 操作重新执行时沿用各请求的重试状态, 重试次数不会因此清零
+        private final Map<String, RequestScheduler.RetryState> retries = new ConcurrentHashMap<>();
+        private volatile boolean cancelled = false;
+        private Runnable resume;
+
+        boolean attach(Call call) {
+            calls.add(call);
+            if (cancelled) {
+                calls.remove(call);
+                call.cancel();
+                return false;
+            }
+            return true;
+        }
+
+        void detach(Call call) {
+            calls.remove(call);
+        }
+
+        // 合并请求的 follower 等待的是自己独立的 future, 取消它不影响 leader
+        boolean attach(Future<?> future) {
+            waits.add(future);
+            if (cancelled) {
+                waits.remove(future);
+                future.cancel(false);
+                return false;
             }
+            return true;
+        }
+
+        void detach(Future<?> future) {
+            waits.remove(future);
+        }
+
+        boolean isCancelled() {
+            return cancelled;
+        }
+
+        RequestScheduler.RetryState retryFor(Request request) {
+            return retries.computeIfAbsent(request.method() + " " + request.url(),
+                    key -> SCHEDULER.newRetry(request));
+        }
+
+        void clearRetry(Request request) {
+            retries.remove(request.method() + " " + request.url());
+        }
+
+        /**
+         * 退避期间不占用线程: 到期后由定时器执行 task, 期间被取消则立即执行 (task 会因取消而失败).
+         * 已经取消时返回 false.
+         */
+        boolean resumeLater(Runnable task, long delayMillis) {
+            AtomicBoolean started = new AtomicBoolean();
+            Runnable once = () -> {
+                if (started.compareAndSet(false, true)) task.run();
+            };
+            synchronized (this) {
+                if (cancelled) return false;
+                resume = once;
+            }
+            SCHEDULER.schedule(once, delayMillis);
+            return true;
+        }
+
+        void cancel() {
+            Runnable pending;
+            synchronized (this) {
+                cancelled = true;
+                pending = resume;
+                resume = null;
+            }
+            if (pending != null) pending.run();
+            for (Call call : calls) {
+                call.cancel();
+            }
+            for (Future<?> future : waits) {
+                future.cancel(false);
+            }
+        }
+    }
+
+    private String submit(String prefix, ResultCallback callback, Operation operation) {
+        String requestId = nextRequestId(prefix);
+        RequestHandle handle = new RequestHandle();
+        ongoingRequests.put(requestId, handle);
+        executor.execute(() -> runOperation(requestId, handle, callback, operation));
+        return requestId;
+    }
+
+    /**
+     * 需要退避时整个操作从头重新执行 (之前的步骤大多命中缓存), 等待期间线程回到线程池.
+     */
+    private void runOperation(String requestId, RequestHandle handle, ResultCallback callback, Operation operation) {
+        try {
+            notifySuccess(callback, operation.run(handle));
+        } catch (RetryLaterException e) {
+            if (handle.resumeLater(() -> executor.execute(() -> runOperation(requestId, handle, callback, operation)),
+                    e.delayMillis)) {
+                return;
+            }
+            notifyFailure(callback, formatError(new IOException("Canceled")));
+        } catch (Exception e) {
+            notifyFailure(callback, formatError(e));
+        }
+        ongoingRequests.remove(requestId);
+    }
+
+    /**
+     * 请求需要在 delayMillis 后重试; 由 runOperation 安排, 不在工作线程上等待.
+     */
+    private static class RetryLaterException extends IOException {
+        final long delayMillis;
+
+        RetryLaterException(long delayMillis) {
+            super("Retry in " + delayMillis + "ms");
+            this.delayMillis = delayMillis;
         }
     }
 
-    private Response executeRequest(Request request, String requestId) throws IOException {
+    /**
+     * 执行一次请求; 需要重试时抛出 RetryLaterException, 由 runOperation 在退避后重新执行整个操作.
+     */
+    private Response executeRequest(Request request, RequestHandle handle) throws IOException {
+        RequestScheduler.RetryState retry = handle.retryFor(request);
         long startTime = System.currentTimeMillis();
         Call call = client.newCall(request);
-        ongoingCalls.put(requestId, call);
-        
+        if (!handle.attach(call)) {
+            throw new IOException("Canceled");
+        }
+
+        Response response = null;
+        IOException error = null;
         try {
-            Response response = call.execute();
+            response = call.execute();
             logRequestPerformance(startTime, request.url().toString(), response.isSuccessful());
-            return response;
+        } catch (IOException e) {
+            error = e;
         } finally {
-            ongoingCalls.remove(requestId);
+            handle.detach(call);
+        }
+
+        long delay = handle.isCancelled() ? -1 : retry.nextDelay(response, error);
+        if (delay < 0) {
+            handle.clearRetry(request);
+            if (error != null) throw error;
+            return response;
         }
+        if (response != null) response.close();
+        throw new RetryLaterException(delay);
     }
 
     private void logRequestPerformance(long startTime, String url, boolean success) {
@@ -425,14 +1286,17 @@ public class Client {
     }
 
     private String formatError(Exception e) {
+        if (e instanceof FileNotFoundException) return "File not found";
         if (e instanceof JSONException) return e.getMessage();
         if (e instanceof IOException) return "Network error: " + e.getMessage();
         return "Error: " + e.getMessage();
     }
 
+    /**
+     * 取消所有进行中的请求; 线程池与连接池属于 NetworkStack, 不随之关闭.
+     */
     public void shutdown() {
-        executor.shutdownNow();
-        ongoingCalls.values().forEach(Call::cancel);
-        ongoingCalls.clear();
+        ongoingRequests.values().forEach(RequestHandle::cancel);
+        ongoingRequests.clear();
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,338 @@
+package com.firefly.oshe.lunli.client
+
+import kotlinx.coroutines.CancellationException
+import kotlinx.coroutines.Dispatchers
+import kotlinx.coroutines.channels.ProducerScope
+import kotlinx.coroutines.delay
+import kotlinx.coroutines.flow.Flow
+import kotlinx.coroutines.flow.channelFlow
+import kotlinx.coroutines.future.await
+import kotlinx.coroutines.launch
+import kotlinx.coroutines.suspendCancellableCoroutine
+import kotlinx.coroutines.sync.Semaphore
+import kotlinx.coroutines.sync.withPermit
+import kotlinx.coroutines.withContext
+import okhttp3.Call
+import okhttp3.Callback
+import okhttp3.Request
+import okhttp3.Response
+import java.io.FileNotFoundException
+import java.io.IOException
+import java.util.concurrent.TimeUnit
+import kotlin.coroutines.resume
+import kotlin.coroutines.resumeWithException
+
+// Client 的协程接口: 基于 OkHttp enqueue, 不占用 Client 的线程池,
+// 结果在调用方所在的调度器上返回, 取消协程即取消对应的 Call.
+
+data class RemoteFile(
+    val fileName: String,
+    val content: String?,
+    val error: Throwable? = null
+) {
+    val isSuccess: Boolean get() = content != null
+}
+
+suspend fun Client.getDir(path: String): String {
+    val request = dirRequest(path)
+    return coalesce("dir:${request.url}") {
+        execute(request) { response ->
+            Client.readBody(response).also { recordListing(path, it) }
+        }
+    }
+}
+
+private suspend fun Client.getListing(
+    path: String,
+    wanted: Set<String>?
+): Map<String, DirectoryListing.Entry> {
+    val request = dirRequest(path)
+    if (!singleFlight.isEnabled) {
+        return execute(request) { readListing(path, it, wanted) }
+    }
+    // 合并时共享完整索引, 不提前停止
+    return coalesce("listing:${request.url}") {
+        execute(request) { readListing(path, it, null) }
+    }
+}
+
+suspend fun Client.getData(path: String, fileName: String): String {
+    val direct = try {
+        val request = directFileRequest(path, fileName)
+        val raw = coalesce("direct:${request.url}") {
+            execute(request) { Client.readDirectBody(it, path, fileName) }
+        }
+        Client.decodeFileContent(raw)
+    } catch (e: FileNotFoundException) {
+        throw e
+    } catch (e: CancellationException) {
+        throw e
+    } catch (e: Exception) {
+        null
+    }
+    if (direct != null) return direct
+
+    val name = "$fileName.json"
+    val file = getListing(path, setOf(name))[name]
+        ?: throw FileNotFoundException("$path/$name")
+    return downloadFile(path, file.downloadUrl, file.sha)
+}
+
+/**
+ * 列表只请求一次, 文件以 parallelism 为上限并发下载, 每个文件下载完成后立即发射.
+ */
+fun Client.getMultipleFiles(
+    path: String,
+    fileNames: List<String>,
+    parallelism: Int = 6,
+    fileTimeoutMillis: Long = 15_000L
+): Flow<RemoteFile> = channelFlow {
+    val index = getListing(path, fileNames.mapTo(LinkedHashSet()) { "$it.json" })
+    val files = fileNames.distinct().mapNotNull { fileName -> index["$fileName.json"]?.let { fileName to it } }
+    launchDownloads(this@getMultipleFiles, path, files, parallelism, fileTimeoutMillis)
+}
+
+/**
+ * 目录下所有的 .json 文件: 文件名 (去掉 .json) 与下载地址来自同一次流式读取的列表, 不再单独请求目录.
+ */
+fun Client.getAllFiles(
+    path: String,
+    parallelism: Int = 6,
+    fileTimeoutMillis: Long = 15_000L
+): Flow<RemoteFile> = channelFlow {
+    val files = getListing(path, null).values
+        .filter { it.isFile && it.name?.endsWith(".json") == true }
+        .map { it.name.removeSuffix(".json") to it }
+    launchDownloads(this@getAllFiles, path, files, parallelism, fileTimeoutMillis)
+}
+
+private fun ProducerScope<RemoteFile>.launchDownloads(
+    client: Client,
+    path: String,
+    files: List<Pair<String, DirectoryListing.Entry>>,
+    parallelism: Int,
+    fileTimeoutMillis: Long
+) {
+    val semaphore = Semaphore(parallelism.coerceAtLeast(1))
+    files.forEach { (fileName, file) ->
+        launch {
+            val result = semaphore.withPermit {
+                try {
+                    RemoteFile(
+                        fileName,
+                        client.downloadFile(
+                            path,
+                            file.downloadUrl,
+                            file.sha,
+                            fileTimeoutMillis
+                        )
+                    )
+                } catch (e: CancellationException) {
+                    throw e
+                } catch (e: Exception) {
+                    RemoteFile(fileName, null, e)
+                }
+            }
+            send(result)
+        }
+    }
+}
+
+suspend fun Client.uploadData(path: String, fileName: String, content: String): String {
+    execute(uploadRequest(path, fileName, content)) { response ->
+        if (!response.isSuccessful) {
+            throw IOException("HTTP ${response.code}: ${response.message}")
+        }
+        recordWriteResponse(path, fileName, response)
+    }
+    withContext(Dispatchers.IO) { onWriteSucceeded(path) }
+    return "File uploaded successfully"
+}
+
+suspend fun Client.updateData(path: String, fileName: String, newContent: String): String {
+    writeWithSha(path, fileName, "Upload failed") { sha ->
+        updateRequest(path, fileName, newContent, sha)
+    }
+    return "File updated successfully"
+}
+
+suspend fun Client.deleteData(path: String, fileName: String): String {
+    writeWithSha(path, fileName, "Delete failed") { sha ->
+        deleteRequest(path, fileName, sha)
+    }
+    return "File deleted successfully"
+}
+
+/**
+ * 多文件一次提交, 返回新提交的 sha; 分支被并发推进时基于最新提交重试.
+ */
+suspend fun Client.commitBatch(message: String, changes: List<FileChange>): String {
+    require(changes.isNotEmpty()) { "No changes to commit" }
+    val branch = cachedDefaultBranch() ?: execute(repoRequest()) { readDefaultBranch(it) }
+
+    var attempt = 1
+    while (true) {
+        val parent = execute(refRequest(branch)) { Client.readJson(it) }
+            .getJSONObject("object").getString("sha")
+        val baseTree = execute(gitCommitRequest(parent)) { Client.readJson(it) }
+            .getJSONObject("tree").getString("sha")
+        val tree = execute(createTreeRequest(baseTree, changes)) { Client.readJson(it) }.getString("sha")
+        val commit = execute(createCommitRequest(message, tree, parent)) { Client.readJson(it) }
+            .getString("sha")
+
+        val moved = execute(updateRefRequest(branch, commit)) { response ->
+            if (!response.isSuccessful && (response.code != 422 || attempt >= Client.MAX_BATCH_ATTEMPTS)) {
+                throw IOException("Batch commit failed: HTTP ${response.code}")
+            }
+            response.isSuccessful
+        }
+        if (moved) {
+            withContext(Dispatchers.IO) { onBatchCommitted(changes) }
+            return commit
+        }
+        attempt++
+    }
+}
+
+/**
+ * 先用缓存的 sha 写入, 409/422 时重新获取 sha 再写一次.
+ */
+private suspend fun Client.writeWithSha(
+    path: String,
+    fileName: String,
+    failure: String,
+    write: (String) -> Request
+) {
+    var sha = cachedSha(path, fileName)
+    var optimistic = sha != null
+
+    while (true) {
+        val currentSha = sha ?: execute(shaRequest(path, fileName)) { Client.readSha(it) }
+            .also { recordSha(path, fileName, it) }
+        val conflict = execute(write(currentSha)) { response ->
+            when {
+                response.isSuccessful -> {
+                    recordWriteResponse(path, fileName, response)
+                    false
+                }
+                optimistic && Client.isShaConflict(response.code) -> true
+                else -> throw IOException("$failure: HTTP ${response.code}")
+            }
+        }
+        if (!conflict) break
+
+        onShaConflict(path, fileName)
+        optimistic = false
+        sha = null
+    }
+    withContext(Dispatchers.IO) { onWriteSucceeded(path) }
+}
+
+private suspend fun Client.downloadFile(
+    path: String,
+    downloadUrl: String,
+    sha: String?,
+    timeoutMillis: Long = 0L
+): String {
+    withContext(Dispatchers.IO) { readCachedFile(path, downloadUrl, sha) }?.let { return it }
+
+    return coalesce("file:$downloadUrl") {
+        execute(downloadRequest(path, downloadUrl), timeoutMillis) { response ->
+            Client.readBody(response).also { recordFileSha(path, downloadUrl, sha) }
+        }
+    }
+}
+
+/**
+ * 与回调接口共用同一个 SingleFlight: leader 被取消时 follower 重新发起请求.
+ */
+private suspend fun <T> Client.coalesce(key: String, load: suspend () -> T): T {
+    while (true) {
+        val flight = singleFlight.begin<T>(key) ?: return load()
+
+        if (flight.isLeader) {
+            try {
+                return load().also { singleFlight.complete(key, flight, it) }
+            } catch (e: CancellationException) {
+                singleFlight.abandon(key, flight)
+                throw e
+            } catch (e: Throwable) {
+                singleFlight.fail(key, flight, e)
+                throw e
+            }
+        }
+
+        try {
+            return flight.future().await()
+        } catch (e: SingleFlight.AbandonedException) {
+            continue
+        }
+    }
+}
+
+private suspend fun <T> Client.execute(
+    request: Request,
+    timeoutMillis: Long = 0L,
+    transform: (Response) -> T
+): T {
+    val retry = scheduler.newRetry(request)
+    while (true) {
+        val call = httpClient().newCall(request)
+        if (timeoutMillis > 0) call.timeout().timeout(timeoutMillis, TimeUnit.MILLISECONDS)
+
+        val result = try {
+            call.await { response ->
+                val wait = retry.nextDelay(response, null)
+                if (wait >= 0) RetryAfter(wait) else readResponse(response, transform)
+            }
+        } catch (e: ResponseFailure) {
+            // 已收到响应, 4xx 等由 transform 抛出的错误不是传输失败, 不重试
+            throw e.cause
+        } catch (e: IOException) {
+            val wait = retry.nextDelay(null, e)
+            if (wait < 0) throw e
+            RetryAfter(wait)
+        }
+
+        // 退避用 delay 挂起, 不占用线程
+        if (result is RetryAfter) {
+            delay(result.millis)
+            continue
+        }
+        @Suppress("UNCHECKED_CAST")
+        return result as T
+    }
+}
+
+private class RetryAfter(val millis: Long)
+
+// 包装 transform 抛出的 IOException, 与 onFailure 的传输错误区分开
+private class ResponseFailure(override val cause: IOException) : RuntimeException(cause)
+
+private fun <T> readResponse(response: Response, transform: (Response) -> T): T {
+    return try {
+        transform(response)
+    } catch (e: IOException) {
+        throw ResponseFailure(e)
+    }
+}
+
+/**
+ * 响应体在 OkHttp 的回调线程中读取并转换, 调用方只拿到转换后的结果.
+ */
+internal suspend fun <T> Call.await(transform: (Response) -> T): T {
+    return suspendCancellableCoroutine { continuation ->
+        continuation.invokeOnCancellation { cancel() }
+        enqueue(object : Callback {
+            override fun onFailure(call: Call, e: IOException) {
+                continuation.resumeWithException(e)
+            }
+
+            override fun onResponse(call: Call, response: Response) {
+                val result = runCatching { response.use(transform) }
+                result.onSuccess { continuation.resume(it) }
+                    .onFailure { continuation.resumeWithException(it) }
+            }
+        })
+    }
+}
@@ -0,0 +1,129 @@
+package com.firefly.oshe.lunli.client;
+
+import com.google.gson.JsonParseException;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.io.StringReader;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+import okio.BufferedSource;
+
+/**
+ * 目录列表的流式解析: 直接从响应流逐个读取条目, 只保留 name / type / sha / download_url,
+ * 不构建完整的字符串和 JSON 树.
+ */
+public final class DirectoryListing {
+
+    public static final class Entry {
+        public final String name;
+        public final String type;
+        public final String sha;
+        public final String downloadUrl;
+
+        Entry(String name, String type, String sha, String downloadUrl) {
+            this.name = name;
+            this.type = type;
+            this.sha = sha;
+            this.downloadUrl = downloadUrl;
+        }
+
+        public boolean isFile() {
+            return "file".equals(type);
+        }
+    }
+
+    public interface Visitor {
+        /**
+         * 返回 false 时停止读取剩余条目.
+         */
+        boolean visit(Entry entry);
+    }
+
+    private DirectoryListing() {
+    }
+
+    public static void read(BufferedSource source, Visitor visitor) throws IOException {
+        read(new InputStreamReader(source.inputStream(), StandardCharsets.UTF_8), visitor);
+    }
+
+    public static void read(String json, Visitor visitor) throws IOException {
+        read(new StringReader(json), visitor);
+    }
+
+    /**
+     * 按文件名建立索引; wanted 不为 null 时只保留其中的文件, 全部找到后立即停止.
+     */
+    public static Map<String, Entry> index(BufferedSource source, Set<String> wanted,
+                                           Visitor observer) throws IOException {
+        Map<String, Entry> index = new HashMap<>();
+        Set<String> missing = wanted != null ? new HashSet<>(wanted) : null;
+        read(source, entry -> {
+            if (observer != null) observer.visit(entry);
+            if (!entry.isFile()) return true;
+            if (missing == null) {
+                index.put(entry.name, entry);
+                return true;
+            }
+            if (missing.remove(entry.name)) index.put(entry.name, entry);
+            return !missing.isEmpty();
+        });
+        return index;
+    }
+
+    private static void read(Reader input, Visitor visitor) throws IOException {
+        try (JsonReader reader = new JsonReader(input)) {
+            reader.beginArray();
+            while (reader.hasNext()) {
+                if (!visitor.visit(readEntry(reader))) return;
+            }
+            reader.endArray();
+        } catch (IllegalStateException | JsonParseException e) {
+            throw new IOException("Malformed directory listing: " + e.getMessage(), e);
+        }
+    }
+
+    private static Entry readEntry(JsonReader reader) throws IOException {
+        String name = null;
+        String type = null;
+        String sha = null;
+        String downloadUrl = null;
+
+        reader.beginObject();
+        while (reader.hasNext()) {
+            switch (reader.nextName()) {
+                case "name":
+                    name = nextString(reader);
+                    break;
+                case "type":
+                    type = nextString(reader);
+                    break;
+                case "sha":
+                    sha = nextString(reader);
+                    break;
+                case "download_url":
+                    downloadUrl = nextString(reader);
+                    break;
+                default:
+                    reader.skipValue();
+            }
+        }
+        reader.endObject();
+        return new Entry(name, type, sha, downloadUrl);
+    }
+
+    private static String nextString(JsonReader reader) throws IOException {
+        if (reader.peek() == JsonToken.NULL) {
+            reader.nextNull();
+            return null;
+        }
+        return reader.nextString();
+    }
+}
@@ -0,0 +1,54 @@
+package com.firefly.oshe.lunli.client;
+
+import java.nio.charset.StandardCharsets;
+
+import okio.ByteString;
+
+/**
+ * Client.commitBatch 中的单个文件变更, path / fileName 与 uploadData 等方法一致 (fileName 不含 .json).
+ */
+public final class FileChange {
+    public final String path;
+    public final String fileName;
+    public final String content;
+
+    private FileChange(String path, String fileName, String content) {
+        this.path = path;
+        this.fileName = fileName;
+        this.content = content;
+    }
+
+    public static FileChange upload(String path, String fileName, String content) {
+        return new FileChange(path, fileName, content);
+    }
+
+    // 树对象中新建与覆盖是同一种写法, 保留两个名字便于调用方区分意图
+    public static FileChange update(String path, String fileName, String newContent) {
+        return new FileChange(path, fileName, newContent);
+    }
+
+    public static FileChange delete(String path, String fileName) {
+        return new FileChange(path, fileName, null);
+    }
+
+    public boolean isDelete() {
+        return content == null;
+    }
+
+    /**
+     * 与服务器计算方式相同的 git blob sha, 提交成功后可直接写入 sha 缓存.
+     */
+    String blobSha() {
+        byte[] bytes = content.getBytes(StandardCharsets.UTF_8);
+        byte[] header = ("blob " + bytes.length + "\0").getBytes(StandardCharsets.UTF_8);
+        byte[] blob = new byte[header.length + bytes.length];
+        System.arraycopy(header, 0, blob, 0, header.length);
+        System.arraycopy(bytes, 0, blob, header.length, bytes.length);
+        return ByteString.of(blob).sha1().hex();
+    }
+
+    @Override
+    public String toString() {
+        return (isDelete() ? "delete " : "write ") + path + "/" + fileName + ".json";
+    }
+}
@@ -0,0 +1,90 @@
+package com.firefly.oshe.lunli.client;
+
+import android.content.Context;
+
+import java.io.File;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import okhttp3.ConnectionPool;
+import okhttp3.Dispatcher;
+import okhttp3.OkHttpClient;
+
+/**
+ * 进程内唯一的网络组件, 持有唯一的 OkHttpClient (连接池与 Dispatcher), Client 的线程池和校验缓存.
+ * Client, UpdateLauncher 与 Glide 都从这里取客户端, TLS 会话与 HTTP/2 连接得以复用.
+ */
+public final class NetworkStack {
+    private static final int MAX_REQUESTS_PER_HOST = 16;
+    private static final int MAX_IDLE_CONNECTIONS = 8;
+    private static final long VALIDATOR_CACHE_SIZE = 20 * 1024 * 1024;
+
+    private static volatile NetworkStack instance;
+
+    private final OkHttpClient baseClient;
+    private final ExecutorService executor;
+    private final ValidatorCache validatorCache;
+
+    public static NetworkStack get(Context context) {
+        NetworkStack stack = instance;
+        if (stack != null) return stack;
+        synchronized (NetworkStack.class) {
+            if (instance == null) {
+                instance = new NetworkStack(context.getApplicationContext());
+            }
+            return instance;
+        }
+    }
+
+    private NetworkStack(Context context) {
+        Dispatcher dispatcher = new Dispatcher();
+        dispatcher.setMaxRequestsPerHost(MAX_REQUESTS_PER_HOST);
+
+        this.baseClient = new OkHttpClient.Builder()
+                .dispatcher(dispatcher)
+                .connectionPool(new ConnectionPool(MAX_IDLE_CONNECTIONS, 5, TimeUnit.MINUTES))
+                .connectTimeout(15, TimeUnit.SECONDS)
+                .readTimeout(30, TimeUnit.SECONDS)
+                .build();
+
+        int poolSize = Runtime.getRuntime().availableProcessors() + 1;
+        this.executor = Executors.newFixedThreadPool(poolSize, new NamedThreadFactory("Client"));
+
+        this.validatorCache = new ValidatorCache(
+                new File(context.getCacheDir(), "client-validators"), VALIDATOR_CACHE_SIZE);
+    }
+
+    /**
+     * 不带任何业务拦截器的客户端; 需要拦截器时用 newBuilder() 派生, 派生的客户端仍共用连接池和 Dispatcher.
+     */
+    public OkHttpClient client() {
+        return baseClient;
+    }
+
+    ExecutorService executor() {
+        return executor;
+    }
+
+    ValidatorCache validatorCache() {
+        return validatorCache;
+    }
+
+    private static class NamedThreadFactory implements ThreadFactory {
+        private final String prefix;
+        private final AtomicInteger counter = new AtomicInteger();
+
+        NamedThreadFactory(String prefix) {
+            this.prefix = prefix;
+        }
+
+        @Override
+        public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, prefix + "-" + counter.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+}
@@ -0,0 +1,366 @@
+package com.firefly.oshe.lunli.client;
+
+import android.util.Log;
+
+import java.io.IOException;
+import java.net.ConnectException;
+import java.net.UnknownHostException;
+import java.util.Date;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import okhttp3.Interceptor;
+import okhttp3.Request;
+import okhttp3.Response;
+
+/**
+ * 按主机维护的请求准入与重试策略:
+ * 令牌桶的速率由 X-RateLimit-Remaining / X-RateLimit-Reset 推出, 限流响应 (429 / Retry-After) 时整体暂停,
+ * 连续失败时熔断快速失败. 重试的等待由调用方安排 (定时器或协程 delay), 拦截器本身从不 sleep.
+ */
+public class RequestScheduler {
+    private static final String TAG = "RequestScheduler";
+
+    private static final long BASE_BACKOFF_MS = 500;
+    private static final long MAX_BACKOFF_MS = 30_000;
+    // 超过此等待时间的限流不再排队, 直接失败
+    private static final long MAX_THROTTLE_WAIT_MS = 60_000;
+    private static final int MAX_THROTTLE_WAITS = 8;
+    // 限流响应没有 Retry-After / X-RateLimit-Reset 时的暂停时间
+    private static final long DEFAULT_RATE_LIMIT_PAUSE_MS = 5_000;
+
+    private static final int FAILURE_THRESHOLD = 5;
+    private static final long OPEN_MILLIS = 30_000;
+    private static final long MAX_OPEN_MILLIS = 5 * 60_000;
+
+    private final int maxRetries;
+    private final ConcurrentHashMap<String, HostState> hosts = new ConcurrentHashMap<>();
+    private final ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "RequestScheduler");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private final AtomicLong retries = new AtomicLong();
+    private final AtomicLong throttled = new AtomicLong();
+    private final AtomicLong rejected = new AtomicLong();
+
+    /**
+     * 令牌不足或处于限流暂停期, 请求未发出; retryAfterMillis 后可重试.
+     */
+    public static class ThrottledException extends IOException {
+        public final long retryAfterMillis;
+
+        ThrottledException(String host, long retryAfterMillis) {
+            super("Rate limited by " + host + ", retry in " + retryAfterMillis + "ms");
+            this.retryAfterMillis = retryAfterMillis;
+        }
+    }
+
+    /**
+     * 熔断期间请求未发出, 直接失败.
+     */
+    public static class CircuitOpenException extends IOException {
+        CircuitOpenException(String host, long remainingMillis) {
+            super("Circuit open for " + host + ", " + remainingMillis + "ms remaining");
+        }
+    }
+
+    public RequestScheduler(int maxRetries) {
+        this.maxRetries = maxRetries;
+    }
+
+    public Interceptor interceptor() {
+        return chain -> {
+            Request request = chain.request();
+            String host = request.url().host();
+            HostState state = state(host);
+
+            long now = System.currentTimeMillis();
+            long wait = state.acquire(now);
+            if (wait == HostState.OPEN) {
+                rejected.incrementAndGet();
+                throw new CircuitOpenException(host, state.openRemaining(now));
+            }
+            if (wait > 0) {
+                throttled.incrementAndGet();
+                throw new ThrottledException(host, wait);
+            }
+
+            Response response;
+            try {
+                response = chain.proceed(request);
+            } catch (IOException e) {
+                if (chain.call().isCanceled()) {
+                    state.onAbort();
+                } else {
+                    state.onFailure(System.currentTimeMillis());
+                }
+                throw e;
+            }
+            observe(state, response);
+            return response;
+        };
+    }
+
+    public RetryState newRetry(Request request) {
+        return new RetryState(request);
+    }
+
+    /**
+     * 非阻塞地安排一次重试.
+     */
+    public void schedule(Runnable task, long delayMillis) {
+        timer.schedule(task, delayMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * 单个逻辑请求的重试状态. nextDelay 返回下次尝试前应等待的毫秒数, -1 表示不再重试.
+     */
+    public final class RetryState {
+        private final Request request;
+        private int attempts = 0;
+        private int throttleWaits = 0;
+
+        RetryState(Request request) {
+            this.request = request;
+        }
+
+        public long nextDelay(Response response, IOException error) {
+            if (error instanceof CircuitOpenException) return -1;
+            if (error instanceof ThrottledException) {
+                // 请求尚未发出, 任何方法都可以安全地等待后重试, 不计入重试次数
+                long wait = ((ThrottledException) error).retryAfterMillis;
+                if (wait > MAX_THROTTLE_WAIT_MS || ++throttleWaits > MAX_THROTTLE_WAITS) return -1;
+                return wait + ThreadLocalRandom.current().nextLong(50, 250);
+            }
+
+            boolean idempotent = isIdempotent(request.method());
+            if (error != null) {
+                if ("Canceled".equals(error.getMessage())) return -1;
+                if (!idempotent && !isNotSent(error)) return -1;
+            } else {
+                if (!isRetryable(response)) return -1;
+                // 写请求只在服务器明确表示未处理 (限流) 时重试
+                if (!idempotent && !isRateLimited(response)) return -1;
+            }
+
+            if (++attempts > maxRetries) return -1;
+            long backoff = Math.min(MAX_BACKOFF_MS, BASE_BACKOFF_MS << (attempts - 1));
+            long wait = Math.max(jitter(backoff), response != null ? retryAfterMillis(response) : 0);
+            if (wait > MAX_THROTTLE_WAIT_MS) return -1;
+
+            retries.incrementAndGet();
+            Log.d(TAG, String.format("Retrying %s %s in %dms (attempt %d)",
+                    request.method(), request.url(), wait, attempts));
+            return wait;
+        }
+    }
+
+    public long getRetryCount() {
+        return retries.get();
+    }
+
+    public long getThrottledCount() {
+        return throttled.get();
+    }
+
+    public long getRejectedCount() {
+        return rejected.get();
+    }
+
+    public boolean isCircuitOpen(String host) {
+        HostState state = hosts.get(host);
+        return state != null && state.openRemaining(System.currentTimeMillis()) > 0;
+    }
+
+    @Override
+    public String toString() {
+        return "RequestScheduler{retries=" + retries.get() + ", throttled=" + throttled.get()
+                + ", rejected=" + rejected.get() + ", hosts=" + hosts + "}";
+    }
+
+    private HostState state(String host) {
+        HostState state = hosts.get(host);
+        if (state != null) return state;
+        HostState created = new HostState();
+        state = hosts.putIfAbsent(host, created);
+        return state != null ? state : created;
+    }
+
+    private void observe(HostState state, Response response) {
+        long now = System.currentTimeMillis();
+        String remaining = response.header("X-RateLimit-Remaining");
+        String reset = response.header("X-RateLimit-Reset");
+        if (remaining != null && reset != null) {
+            try {
+                state.onRateLimit(Integer.parseInt(remaining), Long.parseLong(reset) * 1000, now);
+            } catch (NumberFormatException ignored) {
+            }
+        }
+
+        if (isRateLimited(response)) {
+            // 没有等待时间的限流也要暂停一下; pauseUntil 同时清除半开的探测标记, 否则熔断会一直打开
+            long retryAfter = retryAfterMillis(response);
+            state.pauseUntil(now + (retryAfter > 0 ? retryAfter : DEFAULT_RATE_LIMIT_PAUSE_MS));
+            return;
+        }
+        if (response.code() >= 500) {
+            state.onFailure(now);
+        } else {
+            state.onSuccess();
+        }
+    }
+
+    private static boolean isIdempotent(String method) {
+        return "GET".equals(method) || "HEAD".equals(method) || "OPTIONS".equals(method);
+    }
+
+    // 连接未建立, 请求一定没有到达服务器
+    private static boolean isNotSent(IOException error) {
+        return error instanceof ConnectException || error instanceof UnknownHostException;
+    }
+
+    private static boolean isRetryable(Response response) {
+        int code = response.code();
+        return code == 408 || code == 429 || code == 500 || code == 502 || code == 503 || code == 504
+                || isRateLimited(response);
+    }
+
+    private static boolean isRateLimited(Response response) {
+        if (response.code() == 429) return true;
+        return response.code() == 403
+                && (response.header("Retry-After") != null
+                    || "0".equals(response.header("X-RateLimit-Remaining")));
+    }
+
+    private static long retryAfterMillis(Response response) {
+        long now = System.currentTimeMillis();
+        String retryAfter = response.header("Retry-After");
+        if (retryAfter != null) {
+            try {
+                return Math.max(0, Long.parseLong(retryAfter.trim()) * 1000);
+            } catch (NumberFormatException e) {
+                Date date = response.headers().getDate("Retry-After");
+                if (date != null) return Math.max(0, date.getTime() - now);
+            }
+        }
+        if ("0".equals(response.header("X-RateLimit-Remaining"))) {
+            String reset = response.header("X-RateLimit-Reset");
+            if (reset != null) {
+                try {
+                    return Math.max(0, Long.parseLong(reset) * 1000 - now);
+                } catch (NumberFormatException ignored) {
+                }
+            }
+        }
+        return 0;
+    }
+
+    // 在 [backoff/2, backoff] 内随机, 避免多个客户端同时重试
+    private static long jitter(long backoff) {
+        return backoff / 2 + ThreadLocalRandom.current().nextLong(backoff / 2 + 1);
+    }
+
+    private static class HostState {
+        static final long OPEN = -1;
+
+        // 令牌桶: 未收到限流头时不限速
+        private double tokens = 0;
+        private double capacity = Double.POSITIVE_INFINITY;
+        private double refillPerMillis = Double.POSITIVE_INFINITY;
+        private long lastRefill = 0;
+        private long pausedUntil = 0;
+
+        // 熔断: openUntil > 0 表示打开, 到期后放行一个探测请求 (半开)
+        private int consecutiveFailures = 0;
+        private long openUntil = 0;
+        private long openMillis = OPEN_MILLIS;
+        private boolean probing = false;
+
+        synchronized long acquire(long now) {
+            if (openUntil > 0 && (now < openUntil || probing)) return OPEN;
+            // 暂停期间不进入半开, 否则探测标记无人清除, 熔断会一直打开
+            if (now < pausedUntil) return pausedUntil - now;
+            if (openUntil > 0) probing = true;
+
+            if (refillPerMillis != Double.POSITIVE_INFINITY) {
+                tokens = Math.min(capacity, tokens + (now - lastRefill) * refillPerMillis);
+                lastRefill = now;
+                if (tokens < 1) {
+                    if (probing) probing = false;
+                    return Math.max(1, (long) Math.ceil((1 - tokens) / refillPerMillis));
+                }
+                tokens -= 1;
+            }
+            return 0;
+        }
+
+        /**
+         * 剩余额度在重置前均匀发放, 允许 remaining/10 的突发.
+         */
+        synchronized void onRateLimit(int remaining, long resetAtMillis, long now) {
+            if (remaining <= 0) {
+                pauseUntil(resetAtMillis);
+                return;
+            }
+            long window = Math.max(1000, resetAtMillis - now);
+            double newCapacity = Math.max(5, Math.min(500, remaining / 10.0));
+            if (refillPerMillis == Double.POSITIVE_INFINITY) {
+                tokens = newCapacity;
+                lastRefill = now;
+            }
+            capacity = newCapacity;
+            tokens = Math.min(tokens, Math.min(capacity, remaining));
+            refillPerMillis = remaining / (double) window;
+        }
+
+        synchronized void pauseUntil(long until) {
+            pausedUntil = Math.max(pausedUntil, until);
+            probing = false;
+        }
+
+        synchronized void onSuccess() {
+            consecutiveFailures = 0;
+            if (openUntil > 0) {
+                Log.i(TAG, "Circuit closed");
+                openUntil = 0;
+                openMillis = OPEN_MILLIS;
+            }
+            probing = false;
+        }
+
+        synchronized void onFailure(long now) {
+            consecutiveFailures++;
+            if (probing) {
+                openMillis = Math.min(MAX_OPEN_MILLIS, openMillis * 2);
+                openUntil = now + openMillis;
+                probing = false;
+                Log.w(TAG, "Probe failed, circuit reopened for " + openMillis + "ms");
+            } else if (openUntil == 0 && consecutiveFailures >= FAILURE_THRESHOLD) {
+                openUntil = now + openMillis;
+                Log.w(TAG, "Circuit opened for " + openMillis + "ms after "
+                        + consecutiveFailures + " failures");
+            }
+        }
+
+        synchronized void onAbort() {
+            probing = false;
+        }
+
+        synchronized long openRemaining(long now) {
+            return openUntil > 0 ? Math.max(0, openUntil - now) : 0;
+        }
+
+        @Override
+        public synchronized String toString() {
+            return "{tokens=" + (refillPerMillis == Double.POSITIVE_INFINITY ? "unlimited" : (int) tokens)
+                    + ", pausedUntil=" + pausedUntil + ", failures=" + consecutiveFailures
+                    + ", open=" + (openUntil > 0) + "}";
+        }
+    }
+}
@@ -0,0 +1,77 @@
+package com.firefly.oshe.lunli.client;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 文件URL → blob sha 的内存缓存, 由目录列表和写入响应填充,
+ * 让 update / delete 省去写入前的那次 GET.
+ */
+public class ShaCache {
+    private final ConcurrentHashMap<String, String> shas = new ConcurrentHashMap<>();
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong conflicts = new AtomicLong();
+
+    /**
+     * 读取并计入命中/未命中.
+     */
+    public String get(String fileUrl) {
+        String sha = shas.get(fileUrl);
+        if (sha != null) {
+            hits.incrementAndGet();
+        } else {
+            misses.incrementAndGet();
+        }
+        return sha;
+    }
+
+    public void put(String fileUrl, String sha) {
+        if (sha == null || sha.isEmpty()) return;
+        shas.put(fileUrl, sha);
+    }
+
+    public void remove(String fileUrl) {
+        shas.remove(fileUrl);
+    }
+
+    /**
+     * 乐观写入被服务器以 409/422 拒绝, 缓存的 sha 已过期.
+     */
+    public void conflict(String fileUrl) {
+        conflicts.incrementAndGet();
+        shas.remove(fileUrl);
+    }
+
+    public void clear() {
+        shas.clear();
+    }
+
+    public int size() {
+        return shas.size();
+    }
+
+    public long getHitCount() {
+        return hits.get();
+    }
+
+    public long getMissCount() {
+        return misses.get();
+    }
+
+    public long getConflictCount() {
+        return conflicts.get();
+    }
+
+    public void resetCounters() {
+        hits.set(0);
+        misses.set(0);
+        conflicts.set(0);
+    }
+
+    @Override
+    public String toString() {
+        return "ShaCache{size=" + shas.size() + ", hits=" + hits.get()
+                + ", misses=" + misses.get() + ", conflicts=" + conflicts.get() + "}";
+    }
+}
@@ -0,0 +1,114 @@
+package com.firefly.oshe.lunli.client;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 相同 key (URL) 的并发 GET 合并为一次网络请求: 第一个调用方 (leader) 执行请求,
+ * 其余调用方 (follower) 等待并共享同一个解析结果.
+ */
+public class SingleFlight {
+    private final ConcurrentHashMap<String, Flight<?>> inFlight = new ConcurrentHashMap<>();
+    private final AtomicLong executions = new AtomicLong();
+    private final AtomicLong dedupHits = new AtomicLong();
+    private volatile boolean enabled = true;
+
+    /**
+     * leader 被取消时以此结束, follower 收到后应自行重新发起请求.
+     */
+    public static final class AbandonedException extends Exception {
+        AbandonedException() {
+            super("Leader request canceled", null, false, false);
+        }
+    }
+
+    public static final class Flight<T> {
+        final CompletableFuture<T> future = new CompletableFuture<>();
+        final boolean leader;
+
+        Flight(boolean leader) {
+            this.leader = leader;
+        }
+
+        public boolean isLeader() {
+            return leader;
+        }
+
+        /**
+         * follower 各自持有独立的 future, 取消它不会影响 leader 和其他 follower.
+         */
+        CompletableFuture<T> future() {
+            return future;
+        }
+    }
+
+    /**
+     * 开始一次请求; 关闭合并时返回 null, 调用方直接请求即可.
+     */
+    @SuppressWarnings("unchecked")
+    public <T> Flight<T> begin(String key) {
+        if (!enabled) return null;
+        Flight<T> created = new Flight<>(true);
+        Flight<?> existing = inFlight.putIfAbsent(key, created);
+        if (existing == null) {
+            executions.incrementAndGet();
+            return created;
+        }
+        dedupHits.incrementAndGet();
+        Flight<T> follower = new Flight<>(false);
+        ((Flight<T>) existing).future.whenComplete((value, error) -> {
+            if (error != null) {
+                follower.future.completeExceptionally(error);
+            } else {
+                follower.future.complete(value);
+            }
+        });
+        return follower;
+    }
+
+    public <T> void complete(String key, Flight<T> flight, T value) {
+        inFlight.remove(key, flight);
+        flight.future.complete(value);
+    }
+
+    public void fail(String key, Flight<?> flight, Throwable error) {
+        inFlight.remove(key, flight);
+        flight.future.completeExceptionally(error);
+    }
+
+    public void abandon(String key, Flight<?> flight) {
+        fail(key, flight, new AbandonedException());
+    }
+
+    public void setEnabled(boolean enabled) {
+        this.enabled = enabled;
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    public int getInFlightCount() {
+        return inFlight.size();
+    }
+
+    public long getExecutionCount() {
+        return executions.get();
+    }
+
+    public long getDedupHitCount() {
+        return dedupHits.get();
+    }
+
+    public void resetCounters() {
+        executions.set(0);
+        dedupHits.set(0);
+    }
+
+    @Override
+    public String toString() {
+        return "SingleFlight{enabled=" + enabled + ", inFlight=" + inFlight.size()
+                + ", executions=" + executions.get() + ", dedupHits=" + dedupHits.get() + "}";
+    }
+}
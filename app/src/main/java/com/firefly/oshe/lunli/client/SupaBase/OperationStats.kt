@@ -0,0 +1,49 @@
+package com.firefly.oshe.lunli.client.SupaBase
+
+import java.util.concurrent.atomic.AtomicInteger
+import java.util.concurrent.atomic.AtomicLong
+
+/**
+ * 单个 SBClient 操作的计数: 进行中的数量, 完成/失败次数与耗时 (含等待并发许可的时间).
+ */
+class OperationStats(val name: String) {
+    private val inFlight = AtomicInteger()
+    private val completed = AtomicLong()
+    private val failed = AtomicLong()
+    private val totalMillis = AtomicLong()
+    private val maxMillis = AtomicLong()
+
+    internal inline fun <T> measure(block: () -> T): T {
+        val start = System.nanoTime()
+        inFlight.incrementAndGet()
+        try {
+            return block().also { completed.incrementAndGet() }
+        } catch (e: Throwable) {
+            failed.incrementAndGet()
+            throw e
+        } finally {
+            inFlight.decrementAndGet()
+            val elapsed = (System.nanoTime() - start) / 1_000_000
+            totalMillis.addAndGet(elapsed)
+            maxMillis.accumulateAndGet(elapsed) { a, b -> maxOf(a, b) }
+        }
+    }
+
+    fun getInFlight(): Int = inFlight.get()
+
+    fun getCompletedCount(): Long = completed.get()
+
+    fun getFailedCount(): Long = failed.get()
+
+    fun getAverageMillis(): Long {
+        val count = completed.get() + failed.get()
+        return if (count == 0L) 0 else totalMillis.get() / count
+    }
+
+    fun getMaxMillis(): Long = maxMillis.get()
+
+    override fun toString(): String {
+        return "$name{inFlight=${inFlight.get()}, completed=${completed.get()}, failed=${failed.get()}, " +
+            "avg=${getAverageMillis()}ms, max=${maxMillis.get()}ms}"
+    }
+}
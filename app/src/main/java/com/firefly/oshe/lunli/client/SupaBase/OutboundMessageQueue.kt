@@ -0,0 +1,88 @@
+package com.firefly.oshe.lunli.client.SupaBase
+
+import android.util.Log
+import kotlinx.coroutines.CompletableDeferred
+import kotlinx.coroutines.CoroutineScope
+import kotlinx.coroutines.Deferred
+import kotlinx.coroutines.channels.Channel
+import kotlinx.coroutines.delay
+import kotlinx.coroutines.launch
+import java.util.concurrent.atomic.AtomicLong
+
+/**
+ * 发送队列: 消息按入队顺序逐批写入, 上一批写入期间到达的消息合并为下一批,
+ * 单条发送不额外等待, 连续输入时一次请求写入多条. 每条消息单独回报是否写入成功.
+ *
+ * write 必须是幂等的 (按消息 id 忽略已存在的行), 失败的批次会整体重试.
+ */
+class OutboundMessageQueue(
+    scope: CoroutineScope,
+    private val write: suspend (List<SBClient.NewMessage>) -> Unit,
+    private val maxBatch: Int = MAX_BATCH
+) {
+    private class Pending(
+        val message: SBClient.NewMessage,
+        val ack: CompletableDeferred<Boolean>
+    )
+
+    private val queue = Channel<Pending>(Channel.UNLIMITED)
+
+    private val batches = AtomicLong()
+    private val sent = AtomicLong()
+    private val failed = AtomicLong()
+
+    init {
+        scope.launch {
+            for (first in queue) {
+                val batch = mutableListOf(first)
+                while (batch.size < maxBatch) {
+                    batch.add(queue.tryReceive().getOrNull() ?: break)
+                }
+                val ok = writeWithRetry(batch.map { it.message })
+                batch.forEach { it.ack.complete(ok) }
+            }
+        }
+    }
+
+    /**
+     * 入队一条消息, 返回的 Deferred 在写入成功 (true) 或最终失败 (false) 时完成.
+     */
+    fun enqueue(message: SBClient.NewMessage): Deferred<Boolean> {
+        val ack = CompletableDeferred<Boolean>()
+        if (queue.trySend(Pending(message, ack)).isFailure) ack.complete(false)
+        return ack
+    }
+
+    private suspend fun writeWithRetry(messages: List<SBClient.NewMessage>): Boolean {
+        batches.incrementAndGet()
+        repeat(MAX_ATTEMPTS) { attempt ->
+            try {
+                write(messages)
+                sent.addAndGet(messages.size.toLong())
+                return true
+            } catch (e: Exception) {
+                Log.w(TAG, "Send ${messages.size} message(s) failed (attempt ${attempt + 1}): ${e.message}")
+                if (attempt < MAX_ATTEMPTS - 1) delay(RETRY_DELAY_MS shl attempt)
+            }
+        }
+        failed.addAndGet(messages.size.toLong())
+        return false
+    }
+
+    fun getBatchCount(): Long = batches.get()
+
+    fun getSentCount(): Long = sent.get()
+
+    fun getFailedCount(): Long = failed.get()
+
+    override fun toString(): String {
+        return "OutboundMessageQueue{batches=${batches.get()}, sent=${sent.get()}, failed=${failed.get()}}"
+    }
+
+    companion object {
+        private const val TAG = "OutboundMessageQueue"
+        private const val MAX_BATCH = 50
+        private const val MAX_ATTEMPTS = 3
+        private const val RETRY_DELAY_MS = 500L
+    }
+}
@@ -0,0 +1,133 @@
+package com.firefly.oshe.lunli.client.SupaBase
+
+import android.content.BroadcastReceiver
+import android.content.Context
+import android.content.Intent
+import android.content.IntentFilter
+import android.net.ConnectivityManager
+import android.net.Network
+import android.os.PowerManager
+import kotlinx.coroutines.channels.Channel
+import kotlinx.coroutines.flow.MutableStateFlow
+import kotlinx.coroutines.flow.StateFlow
+import kotlinx.coroutines.flow.asStateFlow
+import kotlinx.coroutines.flow.filter
+import kotlinx.coroutines.flow.first
+import kotlinx.coroutines.flow.merge
+import kotlinx.coroutines.flow.receiveAsFlow
+import kotlinx.coroutines.withTimeoutOrNull
+import kotlin.random.Random
+
+/**
+ * 自适应轮询间隔: 没有新数据时按指数退避到 maxIntervalMillis, 一有新数据立即回到 minIntervalMillis.
+ * 每次等待加 ±20% 抖动, 避免大量客户端同时轮询. 应用在后台, 熄屏或断网时暂停, 恢复后立即轮询一次.
+ */
+class PollScheduler(
+    private val minIntervalMillis: Long = 3_000L,
+    private val maxIntervalMillis: Long = 60_000L,
+    val active: StateFlow<Boolean> = PollConditions.active
+) {
+    @Volatile
+    private var interval = minIntervalMillis
+    private val wake = Channel<Unit>(Channel.CONFLATED)
+
+    val currentIntervalMillis: Long
+        get() = interval
+
+    fun onResult(hadActivity: Boolean) {
+        interval = if (hadActivity) minIntervalMillis else minOf(maxIntervalMillis, interval * 2)
+    }
+
+    /**
+     * 回到最快的轮询间隔并唤醒正在等待的 awaitNext.
+     */
+    fun poke() {
+        interval = minIntervalMillis
+        wake.trySend(Unit)
+    }
+
+    /**
+     * 暂停时挂起到恢复, 返回是否经历了暂停.
+     */
+    suspend fun awaitActive(): Boolean {
+        if (active.value) return false
+        active.first { it }
+        interval = minIntervalMillis
+        return true
+    }
+
+    /**
+     * 等待到下一次轮询, 最多等待 limitMillis; 期间被暂停时一直挂起到恢复, 此时返回 true.
+     */
+    suspend fun awaitNext(limitMillis: Long = Long.MAX_VALUE): Boolean {
+        val wait = minOf(limitMillis, jitter(interval))
+        if (wait > 0) {
+            withTimeoutOrNull(wait) {
+                merge(wake.receiveAsFlow(), active.filter { !it }).first()
+            }
+        }
+        return awaitActive()
+    }
+
+    private fun jitter(base: Long): Long {
+        return (base * (0.8 + Random.nextDouble() * 0.4)).toLong()
+    }
+}
+
+/**
+ * 进程级的轮询条件: 前台, 亮屏且有网络时为 active.
+ */
+object PollConditions {
+    @Volatile private var foreground = true
+    @Volatile private var screenOn = true
+    @Volatile private var online = true
+    @Volatile private var initialized = false
+
+    private val _active = MutableStateFlow(true)
+    val active: StateFlow<Boolean> = _active.asStateFlow()
+
+    fun init(context: Context) {
+        if (initialized) return
+        synchronized(this) {
+            if (initialized) return
+            initialized = true
+        }
+        val appContext = context.applicationContext
+
+        val powerManager = appContext.getSystemService(Context.POWER_SERVICE) as PowerManager
+        screenOn = powerManager.isInteractive
+        appContext.registerReceiver(object : BroadcastReceiver() {
+            override fun onReceive(context: Context, intent: Intent) {
+                screenOn = intent.action == Intent.ACTION_SCREEN_ON
+                refresh()
+            }
+        }, IntentFilter().apply {
+            addAction(Intent.ACTION_SCREEN_ON)
+            addAction(Intent.ACTION_SCREEN_OFF)
+        })
+
+        val connectivityManager = appContext.getSystemService(Context.CONNECTIVITY_SERVICE) as ConnectivityManager
+        online = connectivityManager.activeNetwork != null
+        connectivityManager.registerDefaultNetworkCallback(object : ConnectivityManager.NetworkCallback() {
+            override fun onAvailable(network: Network) {
+                online = true
+                refresh()
+            }
+
+            override fun onLost(network: Network) {
+                online = false
+                refresh()
+            }
+        })
+        refresh()
+    }
+
+    fun setForeground(isForeground: Boolean) {
+        foreground = isForeground
+        refresh()
+    }
+
+    private fun refresh() {
+        _active.value = foreground && screenOn && online
+    }
+}
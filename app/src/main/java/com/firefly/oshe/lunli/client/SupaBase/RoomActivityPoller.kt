@@ -0,0 +1,50 @@
+package com.firefly.oshe.lunli.client.SupaBase
+
+import android.util.Log
+import kotlinx.coroutines.CancellationException
+import kotlinx.coroutines.flow.Flow
+import kotlinx.coroutines.flow.flow
+
+/**
+ * 所有已加入房间的活动流: 一个聚合查询覆盖全部房间, 只取 messageid 索引行, 不取消息内容.
+ * 轮询间隔由 PollScheduler 自适应调整, 后台, 熄屏或断网时暂停.
+ */
+class RoomActivityPoller(
+    private val roomIds: Collection<String>,
+    private val fetch: suspend (roomIds: Collection<String>, after: SBClient.MessageCursor?) -> SBClient.MessageIdPage =
+        { ids, after -> SBClient.fetchRoomActivity(ids, after) },
+    private val scheduler: PollScheduler = PollScheduler(MIN_INTERVAL_MS, MAX_INTERVAL_MS)
+) {
+    /**
+     * after 之后新增的消息索引, 每次轮询取到的行合并为一批发射.
+     */
+    fun activity(after: SBClient.MessageCursor?): Flow<List<SBClient.MessageId>> = flow {
+        var cursor = after
+        while (true) {
+            scheduler.awaitActive()
+            val rows = mutableListOf<SBClient.MessageId>()
+            try {
+                do {
+                    val page = fetch(roomIds, cursor)
+                    rows.addAll(page.rows)
+                    cursor = page.next
+                } while (page.hasMore)
+            } catch (e: CancellationException) {
+                throw e
+            } catch (e: Exception) {
+                Log.w(TAG, "Polling room activity failed: ${e.message}")
+            }
+            if (rows.isNotEmpty()) emit(rows)
+            scheduler.onResult(rows.isNotEmpty())
+            scheduler.awaitNext()
+        }
+    }
+
+    fun poke() = scheduler.poke()
+
+    companion object {
+        private const val TAG = "RoomActivityPoller"
+        private const val MIN_INTERVAL_MS = 5_000L
+        private const val MAX_INTERVAL_MS = 60_000L
+    }
+}
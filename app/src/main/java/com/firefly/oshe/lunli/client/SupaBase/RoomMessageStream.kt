@@ -0,0 +1,212 @@
+package com.firefly.oshe.lunli.client.SupaBase
+
+import android.util.Log
+import io.github.jan.supabase.SupabaseClient
+import io.github.jan.supabase.realtime.PostgresAction
+import io.github.jan.supabase.realtime.Realtime
+import io.github.jan.supabase.realtime.RealtimeChannel
+import io.github.jan.supabase.realtime.channel
+import io.github.jan.supabase.realtime.postgresChangeFlow
+import io.github.jan.supabase.realtime.realtime
+import kotlinx.coroutines.CoroutineStart
+import kotlinx.coroutines.NonCancellable
+import kotlinx.coroutines.channels.Channel
+import kotlinx.coroutines.coroutineScope
+import kotlinx.coroutines.flow.Flow
+import kotlinx.coroutines.flow.MutableStateFlow
+import kotlinx.coroutines.flow.StateFlow
+import kotlinx.coroutines.flow.asStateFlow
+import kotlinx.coroutines.flow.channelFlow
+import kotlinx.coroutines.flow.filter
+import kotlinx.coroutines.flow.first
+import kotlinx.coroutines.flow.merge
+import kotlinx.coroutines.isActive
+import kotlinx.coroutines.launch
+import kotlinx.coroutines.withContext
+import kotlinx.coroutines.withTimeoutOrNull
+import kotlinx.serialization.json.JsonObject
+import kotlinx.serialization.json.JsonPrimitive
+import kotlinx.serialization.json.contentOrNull
+import kotlin.random.Random
+
+/**
+ * 单个房间的实时消息流: 订阅按 room_id 过滤的 messages 插入事件,
+ * 订阅成功 (包括每次重连) 后从最后一条已送达消息的 (created_at, id) 游标逐页补齐断线期间的空缺.
+ * Realtime 不可用时降级为轮询, 同时按退避间隔继续尝试恢复订阅.
+ * 轮询间隔由 PollScheduler 自适应调整; 应用在后台, 熄屏或断网时断开订阅并暂停轮询, 恢复后重连补齐.
+ *
+ * client 可指向本地的 websocket 替身服务, backfill 可替换为假数据, 便于测试.
+ */
+class RoomMessageStream(
+    private val roomId: String,
+    private val client: SupabaseClient = SBClient.client,
+    private val backfill: suspend (roomId: String, after: SBClient.MessageCursor?) -> SBClient.MessagePage =
+        { id, after -> SBClient.fetchMessagesAfter(id, after) },
+    private val scheduler: PollScheduler = PollScheduler(POLL_INTERVAL_MS, MAX_POLL_INTERVAL_MS)
+) {
+    enum class Mode { CONNECTING, REALTIME, POLLING, PAUSED, CLOSED }
+
+    private val _mode = MutableStateFlow(Mode.CLOSED)
+    val mode: StateFlow<Mode> = _mode.asStateFlow()
+
+    /**
+     * after 为最后一条已知消息的游标, 为 null 时从房间的第一条消息开始.
+     * 补齐的消息按页成批发射, 推送的消息逐条发射; 同一条消息只会发射一次.
+     */
+    fun messages(after: SBClient.MessageCursor? = null): Flow<List<SBClient.Message>> = channelFlow {
+        var cursor = after
+        val seen = object : LinkedHashMap<String, Unit>() {
+            override fun removeEldestEntry(eldest: MutableMap.MutableEntry<String, Unit>?) =
+                size > SEEN_CAPACITY
+        }
+
+        suspend fun deliver(messages: List<SBClient.Message>): Boolean {
+            val fresh = messages.filter { seen.put(it.id, Unit) == null }
+            if (fresh.isEmpty()) return false
+            fresh.forEach { message ->
+                val position = SBClient.MessageCursor(message.created_at, message.id)
+                if (cursor.let { it == null || position > it }) cursor = position
+            }
+            send(fresh)
+            return true
+        }
+
+        // 返回是否补到了新消息
+        suspend fun catchUp(): Boolean {
+            var delivered = false
+            do {
+                val page = backfill(roomId, cursor)
+                if (deliver(page.messages)) delivered = true
+                // 游标以页末为准, 即使整页都是已见过的消息也要前进
+                page.next?.let { next -> if (cursor.let { it == null || next > it }) cursor = next }
+            } while (page.hasMore)
+            return delivered
+        }
+
+        var failures = 0
+        try {
+            while (isActive) {
+                if (!scheduler.active.value) {
+                    _mode.value = Mode.PAUSED
+                    scheduler.awaitActive()
+                }
+                _mode.value = if (failures == 0) Mode.CONNECTING else Mode.POLLING
+                val channel = client.realtime.channel("messages:$roomId")
+                val live = Channel<SBClient.Message>(Channel.UNLIMITED)
+
+                // postgresChangeFlow 必须在 subscribe 之前创建
+                val collector = launch(start = CoroutineStart.UNDISPATCHED) {
+                    channel.postgresChangeFlow<PostgresAction.Insert>(schema = "public") {
+                        table = "messages"
+                        filter = "room_id=eq.$roomId"
+                    }.collect { change ->
+                        change.record.toMessage()?.let { live.trySend(it) }
+                    }
+                }
+
+                val subscribed = try {
+                    if (client.realtime.status.value != Realtime.Status.CONNECTED) {
+                        client.realtime.connect()
+                    }
+                    withTimeoutOrNull(SUBSCRIBE_TIMEOUT_MS) {
+                        channel.subscribe(blockUntilSubscribed = true)
+                        true
+                    } ?: false
+                } catch (e: Exception) {
+                    Log.w(TAG, "Subscribe to $roomId failed: ${e.message}")
+                    false
+                }
+
+                if (subscribed) {
+                    try {
+                        catchUp()
+                        failures = 0
+                        _mode.value = Mode.REALTIME
+                        coroutineScope {
+                            val forward = launch {
+                                for (message in live) deliver(listOf(message))
+                            }
+                            merge(
+                                channel.status.filter { it != RealtimeChannel.Status.SUBSCRIBED },
+                                client.realtime.status.filter { it == Realtime.Status.DISCONNECTED },
+                                scheduler.active.filter { !it }
+                            ).first()
+                            forward.cancel()
+                        }
+                        if (scheduler.active.value) Log.w(TAG, "Realtime for $roomId dropped, reconnecting")
+                    } catch (e: Exception) {
+                        if (!isActive) throw e
+                        Log.w(TAG, "Realtime for $roomId failed: ${e.message}")
+                    }
+                }
+
+                collector.cancel()
+                live.close()
+                withContext(NonCancellable) {
+                    runCatching { client.realtime.removeChannel(channel) }
+                    if (!scheduler.active.value && client.realtime.subscriptions.isEmpty()) {
+                        runCatching { client.realtime.disconnect() }
+                    }
+                }
+
+                // 暂停引起的断开不算失败, 恢复后直接重连
+                if (!scheduler.active.value) continue
+
+                failures++
+                _mode.value = Mode.POLLING
+                pollFor(backoff(failures)) { catchUp() }
+            }
+        } finally {
+            _mode.value = Mode.CLOSED
+        }
+    }
+
+    /**
+     * 降级期间按自适应间隔轮询, 到时或从暂停中恢复时返回, 由调用方尝试恢复订阅.
+     */
+    private suspend fun pollFor(durationMillis: Long, poll: suspend () -> Boolean) {
+        val until = System.currentTimeMillis() + durationMillis
+        while (true) {
+            try {
+                scheduler.onResult(poll())
+            } catch (e: Exception) {
+                scheduler.onResult(false)
+                Log.w(TAG, "Polling $roomId failed: ${e.message}")
+            }
+            val remaining = until - System.currentTimeMillis()
+            if (remaining <= 0) return
+            if (scheduler.awaitNext(remaining)) return
+        }
+    }
+
+    private fun backoff(failures: Int): Long {
+        val base = minOf(MAX_BACKOFF_MS, MIN_BACKOFF_MS shl minOf(failures - 1, 5))
+        return base / 2 + Random.nextLong(base / 2 + 1)
+    }
+
+    private fun JsonObject.toMessage(): SBClient.Message? {
+        fun field(name: String) = (this[name] as? JsonPrimitive)?.contentOrNull
+        val id = field("id") ?: return null
+        if (field("room_id") != roomId) return null
+        return SBClient.Message(
+            id = id,
+            room_id = roomId,
+            user_id = field("user_id").orEmpty(),
+            content = field("content").orEmpty(),
+            created_at = field("created_at").orEmpty(),
+            content_type = field("content_type"),
+            size = field("size")?.toLongOrNull(),
+            thumbnail = field("thumbnail")
+        )
+    }
+
+    companion object {
+        private const val TAG = "RoomMessageStream"
+        private const val SEEN_CAPACITY = 1024
+        private const val SUBSCRIBE_TIMEOUT_MS = 10_000L
+        private const val POLL_INTERVAL_MS = 3_000L
+        private const val MAX_POLL_INTERVAL_MS = 30_000L
+        private const val MIN_BACKOFF_MS = 2_000L
+        private const val MAX_BACKOFF_MS = 60_000L
+    }
+}
@@ -2,29 +2,64 @@ package com.firefly.oshe.lunli.client.SupaBase
 
 import android.system.ErrnoException
 import com.firefly.oshe.lunli.client.Token
+import com.firefly.oshe.lunli.utils.Iso8601Converter
 import io.github.jan.supabase.SupabaseClient
 import io.github.jan.supabase.createSupabaseClient
+import io.github.jan.supabase.exceptions.RestException
 import io.github.jan.supabase.postgrest.from
 import io.github.jan.supabase.postgrest.postgrest
+import io.github.jan.supabase.postgrest.query.Columns
 import io.github.jan.supabase.postgrest.query.Order
-import io.github.jan.supabase.realtime.PostgresAction
-import io.github.jan.supabase.realtime.realtime
-import io.github.jan.supabase.realtime.channel
-import io.github.jan.supabase.realtime.postgresChangeFlow
+import io.github.jan.supabase.postgrest.query.filter.PostgrestFilterBuilder
 import io.ktor.http.content.Version
 import kotlinx.coroutines.CoroutineScope
 import kotlinx.coroutines.Dispatchers
-import kotlinx.coroutines.channels.awaitClose
+import kotlinx.coroutines.ExperimentalCoroutinesApi
+import kotlinx.coroutines.SupervisorJob
 import kotlinx.coroutines.flow.Flow
-import kotlinx.coroutines.flow.callbackFlow
+import kotlinx.coroutines.flow.flow
 import kotlinx.coroutines.withContext
-import kotlinx.coroutines.flow.flowOn
-import kotlinx.coroutines.launch
+import kotlinx.coroutines.sync.Semaphore
+import kotlinx.coroutines.sync.withPermit
 import kotlinx.serialization.Serializable
+import kotlinx.serialization.json.Json
+import kotlinx.serialization.json.buildJsonObject
+import kotlinx.serialization.json.encodeToJsonElement
+import kotlinx.serialization.json.put
 import okhttp3.Dispatcher
+import okio.ByteString.Companion.encodeUtf8
 import java.sql.Timestamp
+import java.util.concurrent.ConcurrentHashMap
 
 object SBClient {
+    const val MESSAGE_PAGE_SIZE = 200
+    const val HISTORY_PAGE_SIZE = 50
+    // 单次 in 查询的 id 数, 避免 URL 过长
+    const val USER_BATCH_SIZE = 100
+    const val ROOM_BATCH_SIZE = 100
+
+    const val CONTENT_TYPE_TEXT = "text"
+    const val CONTENT_TYPE_IMAGE = "image"
+    // 图片消息行的 content, 旧版本客户端显示为文字
+    private const val IMAGE_PLACEHOLDER = "[图片]"
+
+    // 列表查询的列: 图片消息只带缩略图, 原图在 message_attachments 中按需读取
+    private val MESSAGE_COLUMNS = Columns.list(
+        "id", "room_id", "user_id", "content", "created_at", "content_type", "size", "thumbnail"
+    )
+
+    private const val MAX_PARALLELISM = 4
+    // 同时进行的请求上限, 超出时调用方挂起等待, 后端变慢时形成背压而不是堆积协程
+    private const val MAX_IN_FLIGHT = 16
+
+    @OptIn(ExperimentalCoroutinesApi::class)
+    private val dispatcher = Dispatchers.IO.limitedParallelism(MAX_PARALLELISM)
+    private val permits = Semaphore(MAX_IN_FLIGHT)
+    private val operations = ConcurrentHashMap<String, OperationStats>()
+
+    // SBClient 自身的后台工作 (发送队列) 运行在这里, 单个任务失败不影响其他任务
+    private val scope = CoroutineScope(SupervisorJob() + dispatcher)
+
     val client: SupabaseClient = createSupabaseClient(
         supabaseUrl = Token.supabaseAPI(),
         supabaseKey = Token.supabaseToken()
@@ -34,21 +69,43 @@ object SBClient {
         httpEngine = io.ktor.client.engine.cio.CIO.create()
     }
 
-    fun createUser(userId: String, username: String, userImage: String) {
-        CoroutineScope(Dispatchers.IO).launch {
+    /**
+     * 所有请求都经过这里: 限制并发, 切到受限的 IO 调度器, 记录耗时与进行中的数量.
+     * 在调用方的协程中执行, 调用方取消时请求随之取消.
+     */
+    private suspend fun <T> call(name: String, block: suspend () -> T): T {
+        val stats = operations.getOrPut(name) { OperationStats(name) }
+        return stats.measure {
+            permits.withPermit {
+                withContext(dispatcher) { block() }
+            }
+        }
+    }
+
+    fun getOperationStats(): List<OperationStats> = operations.values.sortedBy { it.name }
+
+    suspend fun createUser(userId: String, username: String, userImage: String): Boolean {
+        return call("createUser") {
             try {
-                client.postgrest["users"].insert(
-                    User(id = userId, name = username, image = userImage)
+                withAvatarVersion(
+                    {
+                        client.postgrest["users"].insert(
+                            User(id = userId, name = username, image = userImage, image_version = avatarVersion(userImage))
+                        )
+                    },
+                    { client.postgrest["users"].insert(NewUser(id = userId, name = username, image = userImage)) }
                 )
                 println("User inserted: $userId")
+                true
             } catch (e: Exception) {
                 e.printStackTrace()
+                false
             }
         }
     }
 
     suspend fun fetchUser(userId: String): User? {
-        return withContext(Dispatchers.IO) {
+        return call("fetchUser") {
             try {
                 client.from("users")
                     .select {
@@ -63,150 +120,357 @@ object SBClient {
         }
     }
 
-    fun updateUser(userId: String, userName: String, userImage: String, callback: (Boolean) -> Unit = {}) {
-        CoroutineScope(Dispatchers.IO).launch {
-            try {
-                client.postgrest["users"]
-                    .update({
-                        set("name", userName)
-                        set("image", userImage)
-                    }
-                    ) {
-                        filter {
-                            eq("id",userId)
-                        }
+    /**
+     * 按 id 批量取用户 (名字与头像一次取回), 每 USER_BATCH_SIZE 个 id 一次 in 查询; 不存在的用户不出现在结果中.
+     * 以下批量查询失败时都抛出异常, 调用方据此区分 "用户不存在" 与 "请求失败".
+     */
+    suspend fun fetchUsers(userIds: Collection<String>): List<User> =
+        selectUsers(userIds, "id", "name", "image", "image_version")
+
+    // 只取名字, 不下载头像
+    suspend fun fetchUserNames(userIds: Collection<String>): List<UserName> =
+        selectUsers(userIds, "id", "name")
+
+    suspend fun fetchUserAvatars(userIds: Collection<String>): List<UserAvatar> =
+        selectUsers(userIds, "id", "image", "image_version")
+
+    // 只取头像版本, 用于判断缓存的头像是否仍是最新
+    suspend fun fetchAvatarVersions(userIds: Collection<String>): List<AvatarVersion> =
+        selectUsers(userIds, "id", "image_version")
+
+    // 没有 image_version 列时不取该列, 版本为空的头像过期后整张重新下载
+    private suspend inline fun <reified T : Any> selectUsers(userIds: Collection<String>, vararg columns: String): List<T> {
+        return call("selectUsers(${columns.joinToString()})") {
+            val legacy = columns.filter { it != "image_version" }
+            withAvatarVersion(
+                { selectUserBatches<T>(userIds, columns.toList()) },
+                { selectUserBatches<T>(userIds, legacy) }
+            )
+        }
+    }
+
+    private suspend inline fun <reified T : Any> selectUserBatches(userIds: Collection<String>, columns: List<String>): List<T> {
+        return userIds.distinct().chunked(USER_BATCH_SIZE).flatMap { batch ->
+            client.from("users")
+                .select(Columns.list(*columns.toTypedArray())) {
+                    filter {
+                        isIn("id", batch)
                     }
-                CoroutineScope(Dispatchers.Main).launch {
-                    callback(true)
                 }
+                .decodeList<T>()
+        }
+    }
+
+    /**
+     * 头像内容的摘要, 随头像写入 users.image_version.
+     */
+    fun avatarVersion(image: String): String = image.encodeUtf8().sha1().hex().take(16)
+
+    // 服务器还没有 users.image_version 列时退回不带该列的读写, 检测到一次后不再尝试
+    @Volatile
+    private var avatarVersionAvailable = true
+
+    /**
+     * 优先执行读写 image_version 的请求, PostgREST 报告该列不存在时改用 legacy, 头像版本不会影响注册和资料修改.
+     */
+    private suspend inline fun <T> withAvatarVersion(current: () -> T, legacy: () -> T): T {
+        if (!avatarVersionAvailable) return legacy()
+        return try {
+            current()
+        } catch (e: RestException) {
+            if (e.message?.contains("image_version") != true) throw e
+            avatarVersionAvailable = false
+            legacy()
+        }
+    }
+
+    suspend fun updateUser(userId: String, userName: String, userImage: String): Boolean {
+        return call("updateUser") {
+            try {
+                withAvatarVersion(
+                    { updateUserRow(userId, userName, userImage, avatarVersion(userImage)) },
+                    { updateUserRow(userId, userName, userImage, null) }
+                )
                 println("User Name Update: $userName")
+                true
             } catch (e: Exception) {
-                CoroutineScope(Dispatchers.Main).launch {
-                    callback(false)
-                }
                 e.printStackTrace()
+                false
             }
         }
     }
 
-    fun createRoom(roomId: String) {
-        CoroutineScope(Dispatchers.IO).launch {
+    private suspend fun updateUserRow(userId: String, userName: String, userImage: String, version: String?) {
+        client.postgrest["users"]
+            .update({
+                set("name", userName)
+                set("image", userImage)
+                version?.let { set("image_version", it) }
+            }
+            ) {
+                filter {
+                    eq("id",userId)
+                }
+            }
+    }
+
+    suspend fun createRoom(roomId: String): Boolean {
+        return call("createRoom") {
             try {
                 client.postgrest["rooms"].insert(
                     RoomId(id = roomId)
                 )
                 println("Room created: $roomId")
+                true
             } catch (e: Exception) {
                 e.printStackTrace()
+                false
             }
         }
     }
 
-    fun sendMessage(messageId: String, roomId: String, userId: String, content: String, callback: (Boolean) -> Unit = {}) {
-        CoroutineScope(Dispatchers.IO).launch {
+    // 发送 RPC 未部署时退回两次批量写入, 检测到一次后不再尝试
+    @Volatile
+    private var sendRpcAvailable = true
+
+    private val outbound by lazy {
+        OutboundMessageQueue(scope, { messages -> call("writeMessages") { writeMessages(messages) } })
+    }
+
+    /**
+     * 消息进入发送队列按顺序写入, 返回这一条是否写入成功.
+     * 调用方取消只是不再等待结果, 已入队的消息仍会发出.
+     */
+    suspend fun sendMessage(messageId: String, roomId: String, userId: String, content: String): Boolean {
+        return outbound.enqueue(NewMessage(messageId, roomId, userId, content)).await()
+    }
+
+    /**
+     * 图片消息: 原图先写入 message_attachments, 再以缩略图入队发送消息行,
+     * 消息对其他人可见时原图一定已经存在.
+     */
+    suspend fun sendAttachment(
+        messageId: String,
+        roomId: String,
+        userId: String,
+        data: String,
+        thumbnail: String
+    ): Boolean {
+        val uploaded = call("uploadAttachment") {
             try {
-                client.postgrest["messages"].insert(
-                    NewMessage(messageId, roomId, userId, content)
-                )
-                client.postgrest["messageid"].insert(
-                    NewMessageId(messageId, roomId)
-                )
-                withContext(Dispatchers.Main) {
-                    callback(true)
+                client.postgrest["message_attachments"].upsert(Attachment(messageId, data)) {
+                    ignoreDuplicates = true
                 }
-                println("Message sent")
+                true
             } catch (e: Exception) {
-                withContext(Dispatchers.Main) {
-                    callback(false)
-                }
                 e.printStackTrace()
+                false
             }
         }
+        if (!uploaded) return false
+        val size = data.count { !it.isWhitespace() } * 3L / 4
+        return outbound.enqueue(
+            NewMessage(messageId, roomId, userId, IMAGE_PLACEHOLDER, CONTENT_TYPE_IMAGE, size, thumbnail)
+        ).await()
     }
 
-    suspend fun fetchMessageId(roomId: String, timestamp: String = ""): List<MessageId> {
-        return withContext(Dispatchers.IO) {
-            try {
-                client.from("messageid")
-                    .select {
-                        filter {
-                            eq("room_id", roomId)
-                            if (timestamp != "") gt("created_at", timestamp.replace("+0000", "+00:00"))
-                        }
-                        order("created_at", Order.ASCENDING)
+    /**
+     * 按需取回图片消息的原图 (base64), 不存在时返回 null.
+     */
+    suspend fun fetchAttachment(messageId: String): String? {
+        return call("fetchAttachment") {
+            client.from("message_attachments")
+                .select {
+                    filter {
+                        eq("message_id", messageId)
                     }
-                    .decodeList<MessageId>()
-            } catch (e: Exception) {
-                emptyList()
-            }
+                }
+                .decodeSingleOrNull<Attachment>()
+                ?.data
         }
     }
 
-    suspend fun fetchMessages(messageId: String, roomId: String): List<Message> {
-        return withContext(Dispatchers.IO) {
+    /**
+     * 一批消息与对应的 messageid 行通过 send_messages(messages jsonb) 在一次请求, 一个事务内写入,
+     * 该函数按 id 忽略已存在的行, 重试是安全的.
+     */
+    private suspend fun writeMessages(messages: List<NewMessage>) {
+        if (sendRpcAvailable) {
             try {
-                client.from("messages")
-                    .select {
-                        filter {
-                            eq("id", messageId)
-                            eq("room_id", roomId)
-                        }
-                        order("created_at", Order.ASCENDING)
+                client.postgrest.rpc(
+                    "send_messages",
+                    buildJsonObject { put("messages", Json.encodeToJsonElement(messages)) }
+                )
+                return
+            } catch (e: RestException) {
+                if (e.statusCode != 404) throw e
+                sendRpcAvailable = false
+            }
+        }
+        client.postgrest["messages"].upsert(messages) {
+            ignoreDuplicates = true
+        }
+        client.postgrest["messageid"].upsert(messages.map { NewMessageId(it.id, it.room_id) }) {
+            ignoreDuplicates = true
+        }
+    }
+
+    /**
+     * 增量同步: 一次查询取回 (created_at, id) 严格位于游标之后的一页消息, 按 (created_at, id) 升序.
+     * 同一时刻的多条消息按 id 区分, 不会被跳过. 失败时抛出异常, 调用方据此保留游标重试.
+     */
+    suspend fun fetchMessagesAfter(
+        roomId: String,
+        after: MessageCursor?,
+        limit: Int = MESSAGE_PAGE_SIZE
+    ): MessagePage {
+        return call("fetchMessagesAfter") {
+            val messages = client.from("messages")
+                .select(MESSAGE_COLUMNS) {
+                    filter {
+                        eq("room_id", roomId)
+                        if (after != null) afterCursor(after)
                     }
-                    .decodeList<Message>()
-            } catch (e: Exception) {
-                emptyList()
+                    order("created_at", Order.ASCENDING)
+                    order("id", Order.ASCENDING)
+                    limit(limit.toLong())
+                }
+                .decodeList<Message>()
+            MessagePage(
+                messages,
+                messages.lastOrNull()?.let { MessageCursor(it.created_at, it.id) } ?: after,
+                messages.size >= limit
+            )
+        }
+    }
+
+    // (created_at, id) 严格位于游标之后; 仅有时间 (来自本地缓存) 时包含该时刻, 重复的行由调用方去重
+    private fun PostgrestFilterBuilder.afterCursor(cursor: MessageCursor) {
+        val createdAt = cursor.createdAt.replace("+0000", "+00:00")
+        if (cursor.id.isEmpty()) {
+            gte("created_at", createdAt)
+        } else {
+            or {
+                gt("created_at", createdAt)
+                and {
+                    eq("created_at", createdAt)
+                    gt("id", cursor.id)
+                }
             }
         }
     }
 
-    suspend fun fetchMessages(roomId: String): List<Message> {
-        return withContext(Dispatchers.IO) {
-            try {
-                client.from("messages")
+    /**
+     * 多个房间的新消息索引: 只查 messageid 表 (id, room_id, created_at), 不取消息内容,
+     * 用于未读计数. 房间多于 ROOM_BATCH_SIZE 时分组查询后合并, 游标语义与 fetchMessagesAfter 相同.
+     */
+    suspend fun fetchRoomActivity(
+        roomIds: Collection<String>,
+        after: MessageCursor?,
+        limit: Int = MESSAGE_PAGE_SIZE
+    ): MessageIdPage {
+        return call("fetchRoomActivity") {
+            var truncated = false
+            val rows = roomIds.distinct().chunked(ROOM_BATCH_SIZE).flatMap { batch ->
+                client.from("messageid")
                     .select {
                         filter {
-                            eq("room_id", roomId)
+                            isIn("room_id", batch)
+                            if (after != null) afterCursor(after)
                         }
                         order("created_at", Order.ASCENDING)
+                        order("id", Order.ASCENDING)
+                        limit(limit.toLong())
                     }
-                    .decodeList<Message>()
-            } catch (e: Exception) {
-                emptyList()
+                    .decodeList<MessageId>()
+                    .also { if (it.size >= limit) truncated = true }
             }
+            val page = rows
+                .sortedWith(compareBy<MessageId> { MessageCursor(it.created_at, it.id) })
+                .take(limit)
+            MessageIdPage(
+                page,
+                page.lastOrNull()?.let { MessageCursor(it.created_at, it.id) } ?: after,
+                truncated || rows.size > limit
+            )
         }
     }
 
-    // SupaBase数据库并未实现RealTime, 暂时搁置
-    fun subscribeMessages(roomId: String): Flow<Message> = callbackFlow {
-        val channel = client.realtime.channel("messages:$roomId")
-        channel.subscribe()
-        val job = launch {
-            channel.postgresChangeFlow<PostgresAction.Insert>(schema = "public") {
-                table = "messages"
-            }.collect { change ->
-                val newMessage = change.record
-                val message = Message(
-                    id = newMessage["id"]?.toString().orEmpty(),
-                    room_id = newMessage["room_id"]?.toString().orEmpty(),
-                    user_id = newMessage["user_id"]?.toString().orEmpty(),
-                    content = newMessage["content"]?.toString().orEmpty(),
-                    created_at = newMessage["created_at"]?.toString().orEmpty()
-                )
-                println("Received message: $message")
-                trySend(message)
-            }
+    /**
+     * 历史分页: 取回 (created_at, id) 严格位于游标之前的最新一页, 游标为 null 时取房间最新的一页.
+     * 返回的消息按时间升序, next 指向本页最旧的一条, 作为下一页的游标.
+     */
+    suspend fun fetchMessagesBefore(
+        roomId: String,
+        before: MessageCursor?,
+        limit: Int = HISTORY_PAGE_SIZE
+    ): MessagePage {
+        return call("fetchMessagesBefore") {
+            val messages = client.from("messages")
+                .select(MESSAGE_COLUMNS) {
+                    filter {
+                        eq("room_id", roomId)
+                        if (before != null) {
+                            val createdAt = before.createdAt.replace("+0000", "+00:00")
+                            if (before.id.isEmpty()) {
+                                // 本地缓存的时间只精确到毫秒, 取到该毫秒结束, 重复的消息由调用方去重
+                                val end = Iso8601Converter.parseInstant(createdAt)?.plusMillis(1)?.toString()
+                                lt("created_at", end ?: createdAt)
+                            } else {
+                                or {
+                                    lt("created_at", createdAt)
+                                    and {
+                                        eq("created_at", createdAt)
+                                        lt("id", before.id)
+                                    }
+                                }
+                            }
+                        }
+                    }
+                    order("created_at", Order.DESCENDING)
+                    order("id", Order.DESCENDING)
+                    limit(limit.toLong())
+                }
+                .decodeList<Message>()
+                .reversed()
+            MessagePage(
+                messages,
+                messages.firstOrNull()?.let { MessageCursor(it.created_at, it.id) } ?: before,
+                messages.size >= limit
+            )
         }
+    }
 
-        awaitClose {
-            println("Unsubscribed from messages")
-            job.cancel()
-            launch { channel.unsubscribe() }
-        }
-    }.flowOn(Dispatchers.IO)
+    /**
+     * 从游标开始逐页取回全部新消息, 每页发射一次.
+     */
+    fun syncMessages(
+        roomId: String,
+        after: MessageCursor?,
+        pageSize: Int = MESSAGE_PAGE_SIZE
+    ): Flow<MessagePage> = flow {
+        var cursor = after
+        do {
+            val page = fetchMessagesAfter(roomId, cursor, pageSize)
+            if (page.messages.isNotEmpty()) emit(page)
+            cursor = page.next
+        } while (page.hasMore)
+    }
+
+    /**
+     * 按 room_id 过滤的实时消息流, 断线自动重连并补齐, Realtime 不可用时降级为轮询.
+     */
+    fun subscribeMessages(roomId: String, after: MessageCursor? = null): Flow<List<Message>> =
+        RoomMessageStream(roomId).messages(after)
+
+    /**
+     * 所有已加入房间的新消息索引, 用于未读计数, 不取消息内容.
+     */
+    fun subscribeRoomActivity(roomIds: Collection<String>, after: MessageCursor?): Flow<List<MessageId>> =
+        RoomActivityPoller(roomIds).activity(after)
 
     suspend fun subscribeNewVersion(version: String): List<NewVersion> {
-        return withContext(Dispatchers.IO) {
+        return call("subscribeNewVersion") {
             try {
                 client.from("version")
                     .select {
@@ -223,7 +487,7 @@ object SBClient {
     }
 
     suspend fun subscribeAnnouncement(date: String): List<Announcement> {
-        return withContext(Dispatchers.IO) {
+        return call("subscribeAnnouncement") {
             try {
                 client.from("announcement")
                     .select {
@@ -241,11 +505,39 @@ object SBClient {
 
     @Serializable
     data class User(
+        val id: String,
+        val name: String,
+        val image: String,
+        val image_version: String? = null
+    )
+
+    // 不带 image_version 的用户行, 用于没有该列的服务器
+    @Serializable
+    data class NewUser(
         val id: String,
         val name: String,
         val image: String
     )
 
+    @Serializable
+    data class UserName(
+        val id: String,
+        val name: String
+    )
+
+    @Serializable
+    data class UserAvatar(
+        val id: String,
+        val image: String,
+        val image_version: String? = null
+    )
+
+    @Serializable
+    data class AvatarVersion(
+        val id: String,
+        val image_version: String? = null
+    )
+
     @Serializable
     data class RoomId(
         val id: String
@@ -256,7 +548,10 @@ object SBClient {
         val id: String,
         val room_id: String,
         val user_id: String,
-        val content: String
+        val content: String,
+        val content_type: String = CONTENT_TYPE_TEXT,
+        val size: Long? = null,
+        val thumbnail: String? = null
     )
 
     @Serializable
@@ -265,7 +560,37 @@ object SBClient {
         val room_id: String,
         val user_id: String,
         val content: String,
-        val created_at: String
+        val created_at: String,
+        val content_type: String? = null,
+        val size: Long? = null,
+        val thumbnail: String? = null
+    )
+
+    @Serializable
+    data class Attachment(
+        val message_id: String,
+        val data: String
+    )
+
+    /**
+     * 消息的 (created_at, id) 键集游标; id 为空表示只知道时间.
+     */
+    data class MessageCursor(
+        val createdAt: String,
+        val id: String = ""
+    ) : Comparable<MessageCursor> {
+        override fun compareTo(other: MessageCursor): Int {
+            val a = Iso8601Converter.parseInstant(createdAt)
+            val b = Iso8601Converter.parseInstant(other.createdAt)
+            val byTime = if (a != null && b != null) a.compareTo(b) else createdAt.compareTo(other.createdAt)
+            return if (byTime != 0) byTime else id.compareTo(other.id)
+        }
+    }
+
+    data class MessagePage(
+        val messages: List<Message>,
+        val next: MessageCursor?,
+        val hasMore: Boolean
     )
 
     @Serializable
@@ -281,6 +606,12 @@ object SBClient {
         val created_at: String
     )
 
+    data class MessageIdPage(
+        val rows: List<MessageId>,
+        val next: MessageCursor?,
+        val hasMore: Boolean
+    )
+
     @Serializable
     data class NewVersion(
         val tag_name: String,
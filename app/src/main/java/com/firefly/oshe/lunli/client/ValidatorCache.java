@@ -0,0 +1,255 @@
+package com.firefly.oshe.lunli.client;
+
+import android.util.Log;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+
+import okio.BufferedSink;
+import okio.BufferedSource;
+import okio.ByteString;
+import okio.Okio;
+
+/**
+ * 以URL为键的持久化校验缓存: 保存 ETag / Last-Modified / sha 以及响应体,
+ * 供条件请求 (If-None-Match) 命中 304 时直接从本地返回内容.
+ */
+public class ValidatorCache {
+    private static final String TAG = "ValidatorCache";
+    private static final String META_SUFFIX = ".meta";
+    private static final String BODY_SUFFIX = ".body";
+
+    private final File directory;
+    private final long maxSize;
+    private final ConcurrentHashMap<String, Entry> entries = new ConcurrentHashMap<>();
+    private volatile boolean loaded = false;
+
+    public static class Entry {
+        public final String url;
+        public final String etag;
+        public final String lastModified;
+        public final String sha;
+        public final String contentType;
+        public final long storedAt;
+        final File body;
+
+        Entry(String url, String etag, String lastModified, String sha,
+              String contentType, long storedAt, File body) {
+            this.url = url;
+            this.etag = etag;
+            this.lastModified = lastModified;
+            this.sha = sha;
+            this.contentType = contentType;
+            this.storedAt = storedAt;
+            this.body = body;
+        }
+
+        public boolean hasValidator() {
+            return etag != null || lastModified != null;
+        }
+
+        public long length() {
+            return body.length();
+        }
+
+        public BufferedSource source() throws IOException {
+            return Okio.buffer(Okio.source(body));
+        }
+
+        public String readString() throws IOException {
+            try (BufferedSource source = source()) {
+                return source.readString(StandardCharsets.UTF_8);
+            }
+        }
+
+        Entry withStoredAt(long time) {
+            return new Entry(url, etag, lastModified, sha, contentType, time, body);
+        }
+
+        Entry withSha(String newSha) {
+            return new Entry(url, etag, lastModified, newSha, contentType, storedAt, body);
+        }
+    }
+
+    public ValidatorCache(File directory, long maxSize) {
+        this.directory = directory;
+        this.maxSize = maxSize;
+    }
+
+    public static String key(String url) {
+        return ByteString.encodeUtf8(url).md5().hex();
+    }
+
+    public Entry get(String url) {
+        ensureLoaded();
+        Entry entry = entries.get(key(url));
+        if (entry == null) return null;
+        if (!entry.body.exists()) {
+            remove(url);
+            return null;
+        }
+        return entry;
+    }
+
+    /**
+     * 目录列表中的 sha 与已缓存的 sha 一致时, 文件内容无需再次下载.
+     */
+    public Entry getIfSha(String url, String sha) {
+        if (sha == null) return null;
+        Entry entry = get(url);
+        return entry != null && sha.equals(entry.sha) ? entry : null;
+    }
+
+    public Entry put(String url, String etag, String lastModified, String sha,
+                     String contentType, BufferedSource source) throws IOException {
+        ensureLoaded();
+        String key = key(url);
+        Entry previous = entries.get(key);
+        if (sha == null && previous != null) sha = previous.sha;
+
+        File body = new File(directory, key + BODY_SUFFIX);
+        // 每次写入用独立的临时文件, 同一 URL 并发写入时不会互相覆盖出不完整的内容
+        File tmp = File.createTempFile(key, ".tmp", directory);
+        try (BufferedSink sink = Okio.buffer(Okio.sink(tmp))) {
+            sink.writeAll(source);
+        } catch (IOException e) {
+            tmp.delete();
+            throw e;
+        }
+        if (!tmp.renameTo(body)) {
+            tmp.delete();
+            throw new IOException("Failed to commit cache entry for " + url);
+        }
+
+        Entry entry = new Entry(url, etag, lastModified, sha, contentType,
+                System.currentTimeMillis(), body);
+        writeMeta(key, entry);
+        entries.put(key, entry);
+        trimToSize();
+        return entry;
+    }
+
+    public void touch(String url) {
+        Entry entry = get(url);
+        if (entry == null) return;
+        Entry updated = entry.withStoredAt(System.currentTimeMillis());
+        String key = key(url);
+        entries.put(key, updated);
+        writeMeta(key, updated);
+    }
+
+    public void updateSha(String url, String sha) {
+        Entry entry = get(url);
+        if (entry == null || sha == null || sha.equals(entry.sha)) return;
+        Entry updated = entry.withSha(sha);
+        String key = key(url);
+        entries.put(key, updated);
+        writeMeta(key, updated);
+    }
+
+    public void remove(String url) {
+        ensureLoaded();
+        String key = key(url);
+        entries.remove(key);
+        new File(directory, key + META_SUFFIX).delete();
+        new File(directory, key + BODY_SUFFIX).delete();
+    }
+
+    public void clear() {
+        ensureLoaded();
+        for (String url : new ArrayList<>(urls())) {
+            remove(url);
+        }
+    }
+
+    public long size() {
+        ensureLoaded();
+        long total = 0;
+        for (Entry entry : entries.values()) {
+            total += entry.body.length();
+        }
+        return total;
+    }
+
+    private List<String> urls() {
+        List<String> urls = new ArrayList<>();
+        for (Entry entry : entries.values()) {
+            urls.add(entry.url);
+        }
+        return urls;
+    }
+
+    private void trimToSize() {
+        long size = size();
+        if (size <= maxSize) return;
+
+        List<Entry> sorted = new ArrayList<>(entries.values());
+        sorted.sort((a, b) -> Long.compare(a.storedAt, b.storedAt));
+        for (Entry entry : sorted) {
+            if (size <= maxSize) break;
+            size -= entry.body.length();
+            remove(entry.url);
+        }
+    }
+
+    private void writeMeta(String key, Entry entry) {
+        try {
+            JSONObject meta = new JSONObject();
+            meta.put("url", entry.url);
+            meta.putOpt("etag", entry.etag);
+            meta.putOpt("lastModified", entry.lastModified);
+            meta.putOpt("sha", entry.sha);
+            meta.putOpt("contentType", entry.contentType);
+            meta.put("storedAt", entry.storedAt);
+
+            try (BufferedSink sink = Okio.buffer(Okio.sink(new File(directory, key + META_SUFFIX)))) {
+                sink.writeUtf8(meta.toString());
+            }
+        } catch (JSONException | IOException e) {
+            Log.w(TAG, "Failed to write cache meta: " + e.getMessage());
+        }
+    }
+
+    private void ensureLoaded() {
+        if (loaded) return;
+        synchronized (this) {
+            if (loaded) return;
+            if (!directory.exists() && !directory.mkdirs()) {
+                Log.w(TAG, "Cannot create cache directory " + directory);
+            }
+            File[] files = directory.listFiles((dir, name) -> name.endsWith(META_SUFFIX));
+            if (files != null) {
+                for (File file : files) {
+                    String key = file.getName().substring(0, file.getName().length() - META_SUFFIX.length());
+                    try (BufferedSource source = Okio.buffer(Okio.source(file))) {
+                        JSONObject meta = new JSONObject(source.readUtf8());
+                        File body = new File(directory, key + BODY_SUFFIX);
+                        if (!body.exists()) {
+                            file.delete();
+                            continue;
+                        }
+                        entries.put(key, new Entry(
+                                meta.getString("url"),
+                                meta.optString("etag", null),
+                                meta.optString("lastModified", null),
+                                meta.optString("sha", null),
+                                meta.optString("contentType", null),
+                                meta.optLong("storedAt", 0),
+                                body
+                        ));
+                    } catch (JSONException | IOException e) {
+                        file.delete();
+                    }
+                }
+            }
+            loaded = true;
+        }
+    }
+}
@@ -0,0 +1,8 @@
+package com.firefly.oshe.lunli.data.ChatRoom
+
+// 本地缓存的图片, hash 为原始字节的 SHA-256, 内容存放在 MessageCacheManager 的文件目录中
+data class ImageRef(
+    val hash: String,
+    val width: Int,
+    val height: Int
+)
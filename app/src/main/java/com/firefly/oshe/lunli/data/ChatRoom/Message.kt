@@ -5,5 +5,14 @@ data class Message(
     val sender: String,
     val senderImage: String,
     val content: String,
-    val createdAt: String
-)
\ No newline at end of file
+    val createdAt: String,
+    // TYPE_IMAGE 的 content 只是缩略图, 原图按消息 id 另行加载
+    val contentType: String = TYPE_TEXT,
+    // 原图已缓存到本地文件时不为 null
+    val image: ImageRef? = null
+) {
+    companion object {
+        const val TYPE_TEXT = "text"
+        const val TYPE_IMAGE = "image"
+    }
+}
\ No newline at end of file
@@ -0,0 +1,75 @@
+package com.firefly.oshe.lunli.data.ChatRoom.cache
+
+import android.content.Context
+import android.graphics.Bitmap
+import android.graphics.BitmapFactory
+import com.firefly.oshe.lunli.data.ChatRoom.ImageRef
+import com.firefly.oshe.lunli.utils.ImageUtils
+import java.io.File
+import java.security.MessageDigest
+
+/**
+ * 按内容寻址的图片文件: 文件名为原始字节的 SHA-256, 同一张图片无论转发或重发多少次只存一份.
+ * 只负责文件本身, 引用计数记在数据库的 chat_blobs 表中, 由 MessageCacheManager 维护与回收.
+ */
+internal class ImageBlobStore(private val directory: File) {
+
+    fun file(hash: String): File = File(File(directory, hash.substring(0, 2)), hash)
+
+    /**
+     * 写入图片, 已存在时跳过. 先写临时文件再改名, 中途失败不会留下不完整的文件.
+     */
+    fun write(hash: String, data: ByteArray) {
+        val target = file(hash)
+        if (target.exists()) return
+        target.parentFile?.mkdirs()
+        val temp = File(target.parentFile, "$hash.tmp")
+        temp.writeBytes(data)
+        if (!temp.renameTo(target)) {
+            temp.delete()
+            if (!target.exists()) throw IllegalStateException("Unable to write blob $hash")
+        }
+    }
+
+    fun delete(hash: String) {
+        file(hash).delete()
+    }
+
+    /**
+     * 直接从文件解码, 按 maxSize 采样, 不经过 base64 也不把整个文件读进内存.
+     */
+    fun decode(ref: ImageRef, maxSize: Int): Bitmap? {
+        val file = file(ref.hash)
+        if (!file.exists()) return null
+        return ImageUtils.bitmapFromFileOptimized(file.path, maxSize, maxSize)
+    }
+
+    /**
+     * 目录中修改时间早于 before 的文件 (包括写了一半的临时文件), 用于清理数据库中已没有记录的文件.
+     */
+    fun staleFiles(before: Long): List<File> {
+        return directory.listFiles().orEmpty()
+            .flatMap { it.listFiles().orEmpty().asList() }
+            .filter { it.lastModified() < before }
+    }
+
+    companion object {
+        fun directory(context: Context, userId: String): File {
+            return File(context.filesDir, "chat_blobs/$userId")
+        }
+
+        fun hash(data: ByteArray): String {
+            return MessageDigest.getInstance("SHA-256").digest(data).joinToString("") { "%02x".format(it) }
+        }
+
+        /**
+         * 只解析图片头取得宽高, 不是可解码的图片时返回 null.
+         */
+        fun dimensions(data: ByteArray): Pair<Int, Int>? {
+            val options = BitmapFactory.Options().apply { inJustDecodeBounds = true }
+            BitmapFactory.decodeByteArray(data, 0, data.size, options)
+            if (options.outWidth <= 0 || options.outHeight <= 0) return null
+            return options.outWidth to options.outHeight
+        }
+    }
+}
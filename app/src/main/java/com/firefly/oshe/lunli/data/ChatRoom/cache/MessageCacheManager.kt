@@ -1,9 +1,11 @@
 package com.firefly.oshe.lunli.data.ChatRoom.cache
 
 import android.content.Context
+import android.graphics.Bitmap
 import androidx.room.ColumnInfo
 import androidx.room.Dao
 import androidx.room.Database
+import androidx.room.Embedded
 import androidx.room.Entity
 import androidx.room.Index
 import androidx.room.Insert
@@ -11,17 +13,34 @@ import androidx.room.Room
 import androidx.room.OnConflictStrategy
 import androidx.room.PrimaryKey
 import androidx.room.Query
+import androidx.room.RawQuery
 import androidx.room.RoomDatabase
 import androidx.room.Update
+import androidx.room.Upsert
+import androidx.room.migration.Migration
+import androidx.room.withTransaction
+import androidx.sqlite.db.SimpleSQLiteQuery
+import androidx.sqlite.db.SupportSQLiteDatabase
+import androidx.sqlite.db.SupportSQLiteQuery
 import androidx.sqlite.SQLiteConnection
 import co.touchlab.kermit.Logger
+import com.firefly.oshe.lunli.client.SupaBase.SBClient
+import com.firefly.oshe.lunli.data.DatabaseExecutors
 import com.firefly.oshe.lunli.Tools.ShowToast
+import com.firefly.oshe.lunli.data.ChatRoom.ImageRef
 import com.firefly.oshe.lunli.data.ChatRoom.Message
 import com.firefly.oshe.lunli.data.ChatRoom.RoomInfo
+import com.firefly.oshe.lunli.utils.ImageUtils
 import com.firefly.oshe.lunli.utils.Iso8601Converter
 import kotlinx.coroutines.Dispatchers
 import kotlinx.coroutines.withContext
-import java.util.concurrent.Executors
+
+// 消息的 sender 为 "名字 (用户id)", 系统消息等没有 id 的按整个 sender 计
+private fun senderIdOf(sender: String): String {
+    if (!sender.endsWith(")")) return sender
+    val start = sender.lastIndexOf(" (")
+    return if (start == -1) sender else sender.substring(start + 2, sender.length - 1)
+}
 
 private class ChatData {
 
@@ -29,23 +48,66 @@ private class ChatData {
         tableName = "chat_messages",
         indices = [
             Index(value = ["room_id", "timestamp"]),
-            Index(value = ["timestamp"])
+            Index(value = ["timestamp"]),
+            Index(value = ["sender_id", "avatar_version"])
         ]
     )
     data class MessageEntity(
         @PrimaryKey val id: String,
         @ColumnInfo(name = "room_id") val roomId: String,
         @ColumnInfo(name = "sender") val sender: String,
-        @ColumnInfo(name = "sender_image") val senderImage: String,
+        @ColumnInfo(name = "sender_id") val senderId: String,
+        @ColumnInfo(name = "avatar_version") val avatarVersion: String,
         @ColumnInfo(name = "content") val content: String,
         @ColumnInfo(name = "timestamp") val timestamp: Long,
-        @ColumnInfo(name = "is_synced") val isSynced: Boolean = false
+        @ColumnInfo(name = "is_synced") val isSynced: Boolean = false,
+        @ColumnInfo(name = "content_type") val contentType: String = Message.TYPE_TEXT,
+        // 全文索引用的分词文本, 非文本消息为空, 见 MessageSearchIndex
+        @ColumnInfo(name = "search_text") val searchText: String = "",
+        // 原图在 ImageBlobStore 中的 hash 与尺寸, 图片内容不进数据库
+        @ColumnInfo(name = "blob_hash") val blobHash: String? = null,
+        @ColumnInfo(name = "image_width") val imageWidth: Int = 0,
+        @ColumnInfo(name = "image_height") val imageHeight: Int = 0
     ) {
-        fun toMessage(): Message {
-            return Message(id, sender, senderImage, content, Iso8601Converter.toUtcZeroOffsetFormat(timestamp))
+        fun toMessage(senderImage: String): Message {
+            return Message(
+                id,
+                sender,
+                senderImage,
+                content,
+                Iso8601Converter.toUtcZeroOffsetFormat(timestamp),
+                contentType,
+                blobHash?.let { ImageRef(it, imageWidth, imageHeight) }
+            )
         }
     }
 
+    // 图片文件的引用计数, 由 chat_messages 上的触发器随 blob_hash 的增删改维护
+    @Entity(tableName = "chat_blobs")
+    data class BlobEntity(
+        @PrimaryKey val hash: String,
+        @ColumnInfo(name = "size") val size: Long,
+        @ColumnInfo(name = "ref_count") val refCount: Int,
+        @ColumnInfo(name = "touched_at") val touchedAt: Long
+    )
+
+    class ImageRow(
+        @ColumnInfo(name = "id") val id: String,
+        @ColumnInfo(name = "blob_hash") val blobHash: String,
+        @ColumnInfo(name = "image_width") val imageWidth: Int,
+        @ColumnInfo(name = "image_height") val imageHeight: Int
+    ) {
+        fun toImageRef(): ImageRef = ImageRef(blobHash, imageWidth, imageHeight)
+    }
+
+    // 每个用户的每个头像版本只存一份, 消息通过 (sender_id, avatar_version) 引用
+    @Entity(tableName = "chat_users", primaryKeys = ["user_id", "avatar_version"])
+    data class UserEntity(
+        @ColumnInfo(name = "user_id") val userId: String,
+        @ColumnInfo(name = "avatar_version") val avatarVersion: String,
+        @ColumnInfo(name = "image") val image: String
+    )
+
     @Entity(tableName = "chat_rooms")
     data class RoomInfoEntity(
         @PrimaryKey val id: String,
@@ -62,6 +124,30 @@ private class ChatData {
         }
     }
 
+    @Entity(tableName = "chat_room_activity")
+    data class RoomActivityEntity(
+        @PrimaryKey @ColumnInfo(name = "room_id") val roomId: String,
+        @ColumnInfo(name = "unread_count") val unreadCount: Int,
+        @ColumnInfo(name = "last_message_at") val lastMessageAt: Long,
+        @ColumnInfo(name = "last_read_at") val lastReadAt: Long,
+        @ColumnInfo(name = "preview") val preview: String
+    ) {
+        fun toRoomActivity(): MessageCacheManager.RoomActivity {
+            return MessageCacheManager.RoomActivity(roomId, unreadCount, lastMessageAt, preview)
+        }
+    }
+
+    class SearchCandidate(
+        @ColumnInfo(name = "docid") val rowId: Long,
+        @ColumnInfo(name = "timestamp") val timestamp: Long,
+        @ColumnInfo(name = "info") val matchInfo: ByteArray
+    )
+
+    class SearchRow(
+        @ColumnInfo(name = "row_id") val rowId: Long,
+        @Embedded val message: MessageEntity
+    )
+
     @Dao
     interface ChatDao {
         @Query("SELECT * FROM chat_messages WHERE room_id = :roomId ORDER BY timestamp ASC")
@@ -70,15 +156,63 @@ private class ChatData {
         @Query("SELECT * FROM chat_messages WHERE room_id = :roomId AND timestamp > :sinceTime ORDER BY timestamp ASC")
         suspend fun getMessagesSince(roomId: String, sinceTime: Long): List<MessageEntity>
 
-        @Query("SELECT * FROM chat_messages WHERE room_id = :roomId ORDER BY timestamp DESC LIMIT :limit")
+        @Query("SELECT * FROM chat_messages WHERE room_id = :roomId ORDER BY timestamp DESC, id DESC LIMIT :limit")
         suspend fun getRecentMessages(roomId: String, limit: Int): List<MessageEntity>
 
-        @Insert(onConflict = OnConflictStrategy.REPLACE)
+        // 键集分页: (timestamp, id) 严格位于锚点之前/之后, 走 (room_id, timestamp) 索引, 与翻到第几页无关
+        @Query(
+            "SELECT * FROM chat_messages WHERE room_id = :roomId " +
+                "AND (timestamp < :timestamp OR (timestamp = :timestamp AND id < :id)) " +
+                "ORDER BY timestamp DESC, id DESC LIMIT :limit"
+        )
+        suspend fun getMessagesBefore(roomId: String, timestamp: Long, id: String, limit: Int): List<MessageEntity>
+
+        @Query(
+            "SELECT * FROM chat_messages WHERE room_id = :roomId " +
+                "AND (timestamp > :timestamp OR (timestamp = :timestamp AND id > :id)) " +
+                "ORDER BY timestamp ASC, id ASC LIMIT :limit"
+        )
+        suspend fun getMessagesAfter(roomId: String, timestamp: Long, id: String, limit: Int): List<MessageEntity>
+
+        // 冲突时原地更新而不是 REPLACE 的删除再插入, 保持 rowid 不变, 全文索引的触发器才能正确同步
+        @Upsert
         suspend fun insertMessage(message: MessageEntity)
 
-        @Insert(onConflict = OnConflictStrategy.REPLACE)
+        @Upsert
         suspend fun insertMessages(message: List<MessageEntity>)
 
+        // chat_messages_fts 不是 Room 实体, 只能用 RawQuery
+        @RawQuery
+        suspend fun searchCandidates(query: SupportSQLiteQuery): List<SearchCandidate>
+
+        @Query("SELECT rowid AS row_id, * FROM chat_messages WHERE rowid IN (:rowIds)")
+        suspend fun getMessagesByRowIds(rowIds: List<Long>): List<SearchRow>
+
+        @Query("SELECT id, blob_hash, image_width, image_height FROM chat_messages WHERE id IN (:ids) AND blob_hash IS NOT NULL")
+        suspend fun getImageRefs(ids: List<String>): List<ImageRow>
+
+        @Query("UPDATE chat_messages SET blob_hash = :hash, image_width = :width, image_height = :height WHERE id = :id")
+        suspend fun setMessageImage(id: String, hash: String, width: Int, height: Int): Int
+
+        @Insert(onConflict = OnConflictStrategy.IGNORE)
+        suspend fun insertBlob(blob: BlobEntity)
+
+        @Query("UPDATE chat_blobs SET touched_at = :now WHERE hash = :hash")
+        suspend fun touchBlob(hash: String, now: Long)
+
+        @Query("SELECT hash FROM chat_blobs WHERE ref_count <= 0 AND touched_at < :before")
+        suspend fun getUnreferencedBlobs(before: Long): List<String>
+
+        // 删除时重新检查条件, 期间被重新引用或刚登记过的不删
+        @Query("DELETE FROM chat_blobs WHERE hash = :hash AND ref_count <= 0 AND touched_at < :before")
+        suspend fun deleteUnreferencedBlob(hash: String, before: Long): Int
+
+        @Query("SELECT hash FROM chat_blobs WHERE hash IN (:hashes)")
+        suspend fun getBlobHashes(hashes: List<String>): List<String>
+
+        @Query("SELECT COALESCE(SUM(size), 0) FROM chat_blobs")
+        suspend fun getTotalBlobSize(): Long
+
         @Query("DELETE FROM chat_messages WHERE room_id = :roomId")
         suspend fun deleteMessagesByRoom(roomId: String)
 
@@ -94,6 +228,19 @@ private class ChatData {
         @Query("SELECT COUNT(*) FROM chat_messages")
         suspend fun getTotalMessageCount(): Int
 
+        @Query("SELECT * FROM chat_users WHERE user_id IN (:userIds)")
+        suspend fun getUsers(userIds: List<String>): List<UserEntity>
+
+        @Insert(onConflict = OnConflictStrategy.IGNORE)
+        suspend fun insertUsers(users: List<UserEntity>)
+
+        @Query(
+            "DELETE FROM chat_users WHERE NOT EXISTS (SELECT 1 FROM chat_messages " +
+                "WHERE chat_messages.sender_id = chat_users.user_id " +
+                "AND chat_messages.avatar_version = chat_users.avatar_version)"
+        )
+        suspend fun deleteUnreferencedUsers(): Int
+
         @Query("SELECT * FROM chat_rooms")
         suspend fun getAllRooms(): List<RoomInfoEntity>
 
@@ -135,11 +282,29 @@ private class ChatData {
 
         @Query("SELECT COUNT(*) FROM chat_rooms")
         suspend fun getTotalRoomCount(): Int
+
+        @Query("SELECT * FROM chat_room_activity WHERE room_id IN (:roomIds)")
+        suspend fun getRoomActivities(roomIds: List<String>): List<RoomActivityEntity>
+
+        @Query("SELECT * FROM chat_room_activity WHERE room_id = :roomId")
+        suspend fun getRoomActivity(roomId: String): RoomActivityEntity?
+
+        @Insert(onConflict = OnConflictStrategy.REPLACE)
+        suspend fun upsertRoomActivities(activities: List<RoomActivityEntity>)
+
+        @Query("DELETE FROM chat_room_activity WHERE room_id = :roomId")
+        suspend fun deleteRoomActivity(roomId: String)
     }
 
     @Database(
-        entities = [MessageEntity::class, RoomInfoEntity::class],
-        version = 1,
+        entities = [
+            MessageEntity::class,
+            RoomInfoEntity::class,
+            RoomActivityEntity::class,
+            UserEntity::class,
+            BlobEntity::class
+        ],
+        version = 6,
         exportSchema = false
     )
 
@@ -147,6 +312,152 @@ private class ChatData {
         abstract fun chatDao(): ChatDao
 
         companion object {
+            private val MIGRATION_1_2 = object : Migration(1, 2) {
+                override fun migrate(db: SupportSQLiteDatabase) {
+                    db.execSQL(
+                        "CREATE TABLE IF NOT EXISTS `chat_room_activity` (" +
+                            "`room_id` TEXT NOT NULL, `unread_count` INTEGER NOT NULL, " +
+                            "`last_message_at` INTEGER NOT NULL, `last_read_at` INTEGER NOT NULL, " +
+                            "`preview` TEXT NOT NULL, PRIMARY KEY(`room_id`))"
+                    )
+                }
+            }
+
+            private val MIGRATION_2_3 = object : Migration(2, 3) {
+                override fun migrate(db: SupportSQLiteDatabase) {
+                    db.execSQL("ALTER TABLE `chat_messages` ADD COLUMN `content_type` TEXT NOT NULL DEFAULT 'text'")
+                }
+            }
+
+            // 头像从每条消息中拆到 chat_users, 每个 (发送者, 头像) 组合只计算一次摘要
+            private val MIGRATION_3_4 = object : Migration(3, 4) {
+                override fun migrate(db: SupportSQLiteDatabase) {
+                    db.execSQL(
+                        "CREATE TABLE IF NOT EXISTS `chat_users` (`user_id` TEXT NOT NULL, " +
+                            "`avatar_version` TEXT NOT NULL, `image` TEXT NOT NULL, " +
+                            "PRIMARY KEY(`user_id`, `avatar_version`))"
+                    )
+                    db.execSQL(
+                        "CREATE TABLE IF NOT EXISTS `chat_messages_new` (`id` TEXT NOT NULL, " +
+                            "`room_id` TEXT NOT NULL, `sender` TEXT NOT NULL, `sender_id` TEXT NOT NULL, " +
+                            "`avatar_version` TEXT NOT NULL, `content` TEXT NOT NULL, `timestamp` INTEGER NOT NULL, " +
+                            "`is_synced` INTEGER NOT NULL, `content_type` TEXT NOT NULL, PRIMARY KEY(`id`))"
+                    )
+                    val senders = mutableListOf<Pair<String, String>>()
+                    db.query("SELECT DISTINCT `sender`, `sender_image` FROM `chat_messages`").use { cursor ->
+                        while (cursor.moveToNext()) senders.add(cursor.getString(0) to cursor.getString(1))
+                    }
+                    senders.forEach { (sender, image) ->
+                        val senderId = senderIdOf(sender)
+                        val version = SBClient.avatarVersion(image)
+                        db.execSQL(
+                            "INSERT OR IGNORE INTO `chat_users` (`user_id`, `avatar_version`, `image`) VALUES (?, ?, ?)",
+                            arrayOf(senderId, version, image)
+                        )
+                        db.execSQL(
+                            "INSERT INTO `chat_messages_new` SELECT `id`, `room_id`, `sender`, ?, ?, `content`, " +
+                                "`timestamp`, `is_synced`, `content_type` FROM `chat_messages` " +
+                                "WHERE `sender` = ? AND `sender_image` = ?",
+                            arrayOf(senderId, version, sender, image)
+                        )
+                    }
+                    db.execSQL("DROP TABLE `chat_messages`")
+                    db.execSQL("ALTER TABLE `chat_messages_new` RENAME TO `chat_messages`")
+                    db.execSQL("CREATE INDEX IF NOT EXISTS `index_chat_messages_room_id_timestamp` ON `chat_messages` (`room_id`, `timestamp`)")
+                    db.execSQL("CREATE INDEX IF NOT EXISTS `index_chat_messages_timestamp` ON `chat_messages` (`timestamp`)")
+                    db.execSQL(
+                        "CREATE INDEX IF NOT EXISTS `index_chat_messages_sender_id_avatar_version` " +
+                            "ON `chat_messages` (`sender_id`, `avatar_version`)"
+                    )
+                }
+            }
+
+            // 文本消息补上 search_text 后建立全文索引
+            private val MIGRATION_4_5 = object : Migration(4, 5) {
+                override fun migrate(db: SupportSQLiteDatabase) {
+                    db.execSQL("ALTER TABLE `chat_messages` ADD COLUMN `search_text` TEXT NOT NULL DEFAULT ''")
+                    val rows = mutableListOf<Pair<Long, String>>()
+                    db.query("SELECT rowid, `content` FROM `chat_messages` WHERE `content_type` = 'text'").use { cursor ->
+                        while (cursor.moveToNext()) {
+                            val text = MessageSearchIndex.indexText(cursor.getString(1), Message.TYPE_TEXT)
+                            if (text.isNotEmpty()) rows.add(cursor.getLong(0) to text)
+                        }
+                    }
+                    rows.forEach { (rowId, text) ->
+                        db.execSQL("UPDATE `chat_messages` SET `search_text` = ? WHERE rowid = ?", arrayOf(text, rowId))
+                    }
+                    // 触发器在回填之后创建, 已有的行一次性写入索引
+                    MessageSearchIndex.create(db)
+                    db.execSQL(
+                        "INSERT INTO `${MessageSearchIndex.TABLE}`(docid, `search_text`) " +
+                            "SELECT rowid, `search_text` FROM `chat_messages` WHERE `search_text` != ''"
+                    )
+                }
+            }
+
+            // 内联在 content 中的 base64 图片解码后移到文件, 行里只留 hash 与尺寸
+            private fun migration5To6(blobs: ImageBlobStore) = object : Migration(5, 6) {
+                override fun migrate(db: SupportSQLiteDatabase) {
+                    db.execSQL("ALTER TABLE `chat_messages` ADD COLUMN `blob_hash` TEXT")
+                    db.execSQL("ALTER TABLE `chat_messages` ADD COLUMN `image_width` INTEGER NOT NULL DEFAULT 0")
+                    db.execSQL("ALTER TABLE `chat_messages` ADD COLUMN `image_height` INTEGER NOT NULL DEFAULT 0")
+                    db.execSQL(
+                        "CREATE TABLE IF NOT EXISTS `chat_blobs` (`hash` TEXT NOT NULL, `size` INTEGER NOT NULL, " +
+                            "`ref_count` INTEGER NOT NULL, `touched_at` INTEGER NOT NULL, PRIMARY KEY(`hash`))"
+                    )
+                    createBlobTriggers(db)
+
+                    // 内联图片的 search_text 为空, 先按它筛掉绝大部分文本, 再逐行读取内容, 避免一次读入所有图片
+                    val rowIds = mutableListOf<Long>()
+                    db.query(
+                        "SELECT rowid FROM `chat_messages` WHERE `content_type` = 'text' " +
+                            "AND `search_text` = '' AND length(`content`) > 0"
+                    ).use { cursor ->
+                        while (cursor.moveToNext()) rowIds.add(cursor.getLong(0))
+                    }
+                    val now = System.currentTimeMillis()
+                    rowIds.forEach { rowId ->
+                        val content = db.query("SELECT `content` FROM `chat_messages` WHERE rowid = ?", arrayOf<Any>(rowId))
+                            .use { cursor -> if (cursor.moveToFirst()) cursor.getString(0) else null }
+                            ?: return@forEach
+                        if (!MessageSearchIndex.isInlineImage(content)) return@forEach
+                        val data = ImageUtils.base64ToBytes(content) ?: return@forEach
+                        val (width, height) = ImageBlobStore.dimensions(data) ?: return@forEach
+                        val hash = ImageBlobStore.hash(data)
+                        blobs.write(hash, data)
+                        db.execSQL(
+                            "INSERT OR IGNORE INTO `chat_blobs` (`hash`, `size`, `ref_count`, `touched_at`) VALUES (?, ?, 0, ?)",
+                            arrayOf<Any>(hash, data.size.toLong(), now)
+                        )
+                        db.execSQL(
+                            "UPDATE `chat_messages` SET `content` = '', `content_type` = ?, `blob_hash` = ?, " +
+                                "`image_width` = ?, `image_height` = ? WHERE rowid = ?",
+                            arrayOf<Any>(Message.TYPE_IMAGE, hash, width, height, rowId)
+                        )
+                    }
+                }
+            }
+
+            // chat_blobs.ref_count = 引用该 hash 的消息行数
+            private fun createBlobTriggers(db: SupportSQLiteDatabase) {
+                db.execSQL(
+                    "CREATE TRIGGER IF NOT EXISTS `chat_blobs_ai` AFTER INSERT ON `chat_messages` " +
+                        "WHEN new.`blob_hash` IS NOT NULL BEGIN " +
+                        "UPDATE `chat_blobs` SET `ref_count` = `ref_count` + 1 WHERE `hash` = new.`blob_hash`; END"
+                )
+                db.execSQL(
+                    "CREATE TRIGGER IF NOT EXISTS `chat_blobs_ad` AFTER DELETE ON `chat_messages` " +
+                        "WHEN old.`blob_hash` IS NOT NULL BEGIN " +
+                        "UPDATE `chat_blobs` SET `ref_count` = `ref_count` - 1 WHERE `hash` = old.`blob_hash`; END"
+                )
+                db.execSQL(
+                    "CREATE TRIGGER IF NOT EXISTS `chat_blobs_au` AFTER UPDATE OF `blob_hash` ON `chat_messages` " +
+                        "WHEN old.`blob_hash` IS NOT new.`blob_hash` BEGIN " +
+                        "UPDATE `chat_blobs` SET `ref_count` = `ref_count` - 1 WHERE `hash` = old.`blob_hash`; " +
+                        "UPDATE `chat_blobs` SET `ref_count` = `ref_count` + 1 WHERE `hash` = new.`blob_hash`; END"
+                )
+            }
+
             @Volatile
             private var INSTANCES: MutableMap<String, ChatDataBase> = mutableMapOf()
 
@@ -159,17 +470,29 @@ private class ChatData {
             }
 
             private fun createInstance(context: Context, userId: String): ChatDataBase {
-                return Room.databaseBuilder(
-                    context.applicationContext,
-                    ChatDataBase::class.java,
-                    "chat_database_$userId.db"
+                val name = "chat_database_$userId.db"
+                return DatabaseExecutors.configure(
+                    Room.databaseBuilder(context.applicationContext, ChatDataBase::class.java, name),
+                    name
                 )
-                    .setQueryExecutor(Executors.newSingleThreadExecutor())
+                    .addMigrations(
+                        MIGRATION_1_2,
+                        MIGRATION_2_3,
+                        MIGRATION_3_4,
+                        MIGRATION_4_5,
+                        migration5To6(ImageBlobStore(ImageBlobStore.directory(context, userId)))
+                    )
                     .addCallback(
                         object : RoomDatabase.Callback() {
                             override fun onCreate(connection: SQLiteConnection) {
                                 super.onCreate(connection)
                             }
+
+                            override fun onCreate(db: SupportSQLiteDatabase) {
+                                super.onCreate(db)
+                                MessageSearchIndex.create(db)
+                                createBlobTriggers(db)
+                            }
                         }
                     )
                     .build()
@@ -195,33 +518,23 @@ class MessageCacheManager(private val context: Context, private val userId: Stri
 
     private val chatDao by lazy { database.chatDao() }
 
+    private val blobs by lazy { ImageBlobStore(ImageBlobStore.directory(context, userId)) }
+
     companion object {
         private const val CACHE_DURATION = 30L * 24 * 60 * 60 * 1000
         private const val ROOM_INACTIVE_DURATION = 90L * 24 * 60 * 60 * 1000
         private const val BATCH_SIZE = 100
         private const val RECENT_MESSAGES_LIMIT = 500
+        private const val SEARCH_PAGE_SIZE = 20
+        // 登记后这段时间内即使没有引用也不回收, 留给写入文件到消息行落库之间的间隙
+        private const val BLOB_GRACE_PERIOD = 60L * 60 * 1000
+        private const val IMAGE_MAX_SIZE = 2048
     }
 
     suspend fun saveMessagesToCache(roomId: String, messages: List<Message>) {
         withContext(Dispatchers.IO) {
             try {
-                val entities = messages.map { message ->
-                    ChatData.MessageEntity(
-                        message.id,
-                        roomId,
-                        message.sender,
-                        message.senderImage,
-                        message.content,
-                        Iso8601Converter.toUtcZeroOffsetTimestamp(message.createdAt)
-                    )
-                }
-
-                entities.chunked(BATCH_SIZE).forEach { batch ->
-                    chatDao.insertMessages(batch)
-                }
-
-                chatDao.updateRoomActivity(roomId, System.currentTimeMillis())
-
+                insertMessages(roomId, messages) { Iso8601Converter.toUtcZeroOffsetTimestamp(it.createdAt) }
             } catch (e: Exception) { }
         }
     }
@@ -229,25 +542,200 @@ class MessageCacheManager(private val context: Context, private val userId: Stri
     suspend fun saveSingleMessage(roomId: String, message: Message, timestamp: Long) {
         withContext(Dispatchers.IO) {
             try {
-                val entity = ChatData.MessageEntity(
+                insertMessages(roomId, listOf(message)) { timestamp }
+            } catch (e: Exception) { }
+        }
+    }
+
+    /**
+     * 头像写入 chat_users (已存在的版本跳过), 消息行只保留发送者 id 与头像版本.
+     * 内联的 base64 图片解码后存入 ImageBlobStore, 行里只保留 hash 与尺寸.
+     */
+    private suspend fun insertMessages(roomId: String, messages: List<Message>, timestampOf: (Message) -> Long) {
+        val inlineImages = HashMap<String, ImageRef>()
+        messages.forEach { message ->
+            if (message.image != null || message.contentType != Message.TYPE_TEXT) return@forEach
+            if (!MessageSearchIndex.isInlineImage(message.content)) return@forEach
+            ImageUtils.base64ToBytes(message.content)?.let { storeImage(it) }?.let { inlineImages[message.id] = it }
+        }
+
+        val versions = HashMap<String, String>()
+        val users = LinkedHashMap<Pair<String, String>, ChatData.UserEntity>()
+        database.withTransaction {
+            // 同一条消息再次写入时 (例如实时推送或退出时整体保存) 保留之前缓存的原图
+            val cachedImages = messages.filter { it.image == null && it.id !in inlineImages }
+                .map { it.id }
+                .chunked(BATCH_SIZE)
+                .flatMap { chatDao.getImageRefs(it) }
+                .associate { it.id to it.toImageRef() }
+            val entities = messages.map { message ->
+                val senderId = senderIdOf(message.sender)
+                val version = versions.getOrPut(message.senderImage) { SBClient.avatarVersion(message.senderImage) }
+                users.getOrPut(senderId to version) { ChatData.UserEntity(senderId, version, message.senderImage) }
+                val inline = inlineImages[message.id]
+                val image = inline ?: message.image ?: cachedImages[message.id]
+                val content = if (inline != null) "" else message.content
+                val contentType = if (inline != null) Message.TYPE_IMAGE else message.contentType
+                ChatData.MessageEntity(
                     message.id,
                     roomId,
                     message.sender,
-                    message.senderImage,
-                    message.content,
-                    timestamp
+                    senderId,
+                    version,
+                    content,
+                    timestampOf(message),
+                    contentType = contentType,
+                    searchText = MessageSearchIndex.indexText(content, contentType),
+                    blobHash = image?.hash,
+                    imageWidth = image?.width ?: 0,
+                    imageHeight = image?.height ?: 0
                 )
-                chatDao.insertMessage(entity)
-                chatDao.updateRoomActivity(roomId, System.currentTimeMillis())
-            } catch (e: Exception) { }
+            }
+            chatDao.insertUsers(users.values.toList())
+            entities.chunked(BATCH_SIZE).forEach { batch ->
+                chatDao.insertMessages(batch)
+            }
+            chatDao.updateRoomActivity(roomId, System.currentTimeMillis())
+        }
+    }
+
+    /**
+     * 按内容存入图片文件, 同样的字节只存一份. 不是可解码的图片时返回 null.
+     * 先登记 (刷新 touched_at) 再写文件, 与 collectGarbage 的先删记录再删文件配合, 刚写入的文件不会被回收.
+     */
+    private suspend fun storeImage(data: ByteArray): ImageRef? {
+        val (width, height) = ImageBlobStore.dimensions(data) ?: return null
+        val hash = ImageBlobStore.hash(data)
+        val now = System.currentTimeMillis()
+        database.withTransaction {
+            chatDao.insertBlob(ChatData.BlobEntity(hash, data.size.toLong(), 0, now))
+            chatDao.touchBlob(hash, now)
+        }
+        blobs.write(hash, data)
+        return ImageRef(hash, width, height)
+    }
+
+    /**
+     * 删除没有消息引用的图片文件, 以及数据库中已没有记录的残留文件.
+     */
+    private suspend fun collectGarbage() {
+        val before = System.currentTimeMillis() - BLOB_GRACE_PERIOD
+        chatDao.getUnreferencedBlobs(before).chunked(BATCH_SIZE).forEach { batch ->
+            database.withTransaction {
+                batch.filter { chatDao.deleteUnreferencedBlob(it, before) > 0 }.forEach { blobs.delete(it) }
+            }
+        }
+        blobs.staleFiles(before).chunked(BATCH_SIZE).forEach { batch ->
+            val known = chatDao.getBlobHashes(batch.map { it.name }).toSet()
+            batch.filter { it.name !in known }.forEach { it.delete() }
         }
     }
 
+    /**
+     * 保存原图 (base64), 返回的引用随消息一起写入缓存; 没有消息引用的图片过一段时间会被回收.
+     */
+    suspend fun saveImage(data: String): ImageRef? {
+        return withContext(Dispatchers.IO) {
+            try {
+                ImageUtils.base64ToBytes(data)?.let { storeImage(it) }
+            } catch (e: Exception) {
+                null
+            }
+        }
+    }
+
+    /**
+     * 保存从服务器取回的原图, 已缓存的消息行改为引用它.
+     */
+    suspend fun saveAttachment(messageId: String, data: String): ImageRef? {
+        return withContext(Dispatchers.IO) {
+            try {
+                val image = saveImage(data) ?: return@withContext null
+                chatDao.setMessageImage(messageId, image.hash, image.width, image.height)
+                image
+            } catch (e: Exception) {
+                null
+            }
+        }
+    }
+
+    suspend fun getImageRef(messageId: String): ImageRef? {
+        return withContext(Dispatchers.IO) {
+            try {
+                chatDao.getImageRefs(listOf(messageId)).firstOrNull()?.toImageRef()
+            } catch (e: Exception) {
+                null
+            }
+        }
+    }
+
+    /**
+     * 从文件解码原图, 长边按 maxSize 采样; 文件已被清理时返回 null.
+     */
+    suspend fun loadImage(image: ImageRef, maxSize: Int = IMAGE_MAX_SIZE): Bitmap? {
+        return withContext(Dispatchers.IO) {
+            blobs.decode(image, maxSize)
+        }
+    }
+
+    /**
+     * 按需取回这些消息用到的头像, 每个用户只查一次.
+     */
+    private suspend fun toMessages(entities: List<ChatData.MessageEntity>): List<Message> {
+        if (entities.isEmpty()) return emptyList()
+        val images = entities.map { it.senderId }.distinct().chunked(BATCH_SIZE).flatMap { batch ->
+            chatDao.getUsers(batch)
+        }.associate { (it.userId to it.avatarVersion) to it.image }
+        return entities.map { it.toMessage(images[it.senderId to it.avatarVersion] ?: "NULL") }
+    }
+
     suspend fun loadCachedMessages(roomId: String): List<Message> {
         return withContext(Dispatchers.IO) {
             try {
                 val entities = chatDao.getRecentMessages(roomId, RECENT_MESSAGES_LIMIT)
-                entities.map { it.toMessage() }.reversed()
+                toMessages(entities).reversed()
+            } catch (e: Exception) {
+                emptyList()
+            }
+        }
+    }
+
+    /**
+     * 按页读取缓存: before 为 null 时取最新的一页, 否则取该消息之前的一页, 结果按时间升序.
+     */
+    suspend fun loadMessagesPage(roomId: String, before: Message?, limit: Int): List<Message> {
+        return withContext(Dispatchers.IO) {
+            try {
+                val entities = if (before != null) {
+                    chatDao.getMessagesBefore(
+                        roomId,
+                        Iso8601Converter.toUtcZeroOffsetTimestamp(before.createdAt),
+                        before.id,
+                        limit
+                    )
+                } else {
+                    chatDao.getRecentMessages(roomId, limit)
+                }
+                toMessages(entities).reversed()
+            } catch (e: Exception) {
+                emptyList()
+            }
+        }
+    }
+
+    /**
+     * 读取 after 之后的一页缓存, 结果按时间升序.
+     */
+    suspend fun loadMessagesAfter(roomId: String, after: Message, limit: Int): List<Message> {
+        return withContext(Dispatchers.IO) {
+            try {
+                val entities = chatDao.getMessagesAfter(
+                    roomId,
+                    Iso8601Converter.toUtcZeroOffsetTimestamp(after.createdAt),
+                    after.id,
+                    limit
+                )
+                toMessages(entities)
             } catch (e: Exception) {
                 emptyList()
             }
@@ -258,7 +746,7 @@ class MessageCacheManager(private val context: Context, private val userId: Stri
         return withContext(Dispatchers.IO) {
             try {
                 val entities = chatDao.getMessagesSince(roomId, sinceTime)
-                entities.map { it.toMessage() }
+                toMessages(entities)
             } catch (e: Exception) {
                 emptyList()
             }
@@ -272,7 +760,7 @@ class MessageCacheManager(private val context: Context, private val userId: Stri
     }
 
     suspend fun getLastMessages(roomId: String, limit: Int): List<Message> {
-        return chatDao.getRecentMessages(roomId, limit).map { it.toMessage() }.reversed()
+        return toMessages(chatDao.getRecentMessages(roomId, limit)).reversed()
     }
 
     suspend fun getLastMessage(roomId: String): Message? {
@@ -421,6 +909,9 @@ class MessageCacheManager(private val context: Context, private val userId: Stri
                     chatDao.deleteMessagesByRoom(roomId)
                 }
                 chatDao.deleteRoom(roomId)
+                chatDao.deleteRoomActivity(roomId)
+                chatDao.deleteUnreferencedUsers()
+                collectGarbage()
                 true
             } catch (e: Exception) {
                 false
@@ -485,6 +976,9 @@ class MessageCacheManager(private val context: Context, private val userId: Stri
             try {
                 chatDao.deleteMessagesByRoom(roomId)
                 chatDao.deleteRoom(roomId)
+                chatDao.deleteRoomActivity(roomId)
+                chatDao.deleteUnreferencedUsers()
+                collectGarbage()
             } catch (e: Exception) { }
         }
     }
@@ -494,6 +988,8 @@ class MessageCacheManager(private val context: Context, private val userId: Stri
             try {
                 val expireTime = System.currentTimeMillis() - CACHE_DURATION
                 chatDao.deleteExpiredMessages(expireTime)
+                chatDao.deleteUnreferencedUsers()
+                collectGarbage()
             } catch (e: Exception) { }
         }
     }
@@ -518,6 +1014,8 @@ class MessageCacheManager(private val context: Context, private val userId: Stri
                 allRooms.forEach { room ->
                     chatDao.deleteRoom(room.id)
                 }
+                chatDao.deleteUnreferencedUsers()
+                collectGarbage()
             } catch (e: Exception) { }
         }
     }
@@ -533,11 +1031,12 @@ class MessageCacheManager(private val context: Context, private val userId: Stri
             try {
                 val totalMessages = chatDao.getTotalMessageCount()
                 val totalRooms = chatDao.getTotalRoomCount()
+                val totalSize = chatDao.getTotalBlobSize()
 
                 CacheStats(
                     totalRooms,
                     totalMessages,
-                    0
+                    totalSize.coerceAtMost(Int.MAX_VALUE.toLong()).toInt()
                 )
             } catch (e: Exception) {
                 CacheStats(0, 0, 0)
@@ -557,6 +1056,146 @@ class MessageCacheManager(private val context: Context, private val userId: Stri
         }
     }
 
+    /**
+     * 取各房间的未读状态; 第一次见到的房间从现在开始计数, 之前的历史不算未读.
+     */
+    suspend fun getRoomActivities(roomIds: List<String>): List<RoomActivity> {
+        return withContext(Dispatchers.IO) {
+            try {
+                val existing = chatDao.getRoomActivities(roomIds).associateBy { it.roomId }
+                val now = System.currentTimeMillis()
+                val created = roomIds.filter { it !in existing }.map { roomId ->
+                    ChatData.RoomActivityEntity(roomId, 0, now, now, "")
+                }
+                if (created.isNotEmpty()) chatDao.upsertRoomActivities(created)
+                (existing.values + created).map { it.toRoomActivity() }
+            } catch (e: Exception) {
+                emptyList()
+            }
+        }
+    }
+
+    /**
+     * 记录各房间新到的消息 (房间 id -> 消息时间), openRoomId 对应的房间直接记为已读.
+     * 不晚于已记录的最后一条消息的时间会被忽略, 重复轮询到的行不会重复计数. 返回有变化的房间.
+     */
+    suspend fun recordRoomMessages(messages: Map<String, List<Long>>, openRoomId: String?): List<RoomActivity> {
+        return withContext(Dispatchers.IO) {
+            try {
+                database.withTransaction {
+                    val existing = chatDao.getRoomActivities(messages.keys.toList()).associateBy { it.roomId }
+                    val now = System.currentTimeMillis()
+                    val updated = messages.mapNotNull { (roomId, timestamps) ->
+                        val current = existing[roomId] ?: ChatData.RoomActivityEntity(roomId, 0, 0, now, "")
+                        val fresh = timestamps.filter { it > current.lastMessageAt }
+                        if (fresh.isEmpty()) return@mapNotNull null
+                        val latest = fresh.max()
+                        if (roomId == openRoomId) {
+                            current.copy(unreadCount = 0, lastMessageAt = latest, lastReadAt = maxOf(latest, now))
+                        } else {
+                            current.copy(
+                                unreadCount = current.unreadCount + fresh.count { it > current.lastReadAt },
+                                lastMessageAt = latest
+                            )
+                        }
+                    }
+                    if (updated.isNotEmpty()) chatDao.upsertRoomActivities(updated)
+                    updated.map { it.toRoomActivity() }
+                }
+            } catch (e: Exception) {
+                emptyList()
+            }
+        }
+    }
+
+    /**
+     * 清零未读; preview 不为空时同时更新预览 (只有打开的房间才有消息内容可用).
+     */
+    suspend fun markRoomRead(roomId: String, preview: String? = null, lastMessageAt: Long = 0): RoomActivity? {
+        return withContext(Dispatchers.IO) {
+            try {
+                val now = System.currentTimeMillis()
+                val current = chatDao.getRoomActivity(roomId) ?: ChatData.RoomActivityEntity(roomId, 0, 0, now, "")
+                val updated = current.copy(
+                    unreadCount = 0,
+                    lastMessageAt = maxOf(current.lastMessageAt, lastMessageAt),
+                    lastReadAt = maxOf(current.lastReadAt, lastMessageAt, now),
+                    preview = preview ?: current.preview
+                )
+                chatDao.upsertRoomActivities(listOf(updated))
+                updated.toRoomActivity()
+            } catch (e: Exception) {
+                null
+            }
+        }
+    }
+
+    /**
+     * 在缓存的文本消息中搜索, roomId 为 null 时搜索所有房间.
+     * 结果按相关度 (BM25) 排序, 同分时新消息在前; offset/limit 分页, snippet 中命中的部分用 ** 包起来.
+     */
+    suspend fun searchMessages(
+        query: String,
+        roomId: String? = null,
+        limit: Int = SEARCH_PAGE_SIZE,
+        offset: Int = 0
+    ): List<SearchResult> {
+        return withContext(Dispatchers.IO) {
+            try {
+                val match = MessageSearchIndex.matchQuery(query) ?: return@withContext emptyList()
+                val table = MessageSearchIndex.TABLE
+                val sql = StringBuilder()
+                    .append("SELECT $table.docid AS docid, chat_messages.timestamp AS timestamp, ")
+                    .append("matchinfo($table, 'pcnalx') AS info FROM $table ")
+                    .append("JOIN chat_messages ON chat_messages.rowid = $table.docid ")
+                    .append("WHERE $table MATCH ? ")
+                    .apply { if (roomId != null) append("AND chat_messages.room_id = ? ") }
+                    // rowid 是写入顺序, 补拉的历史消息会排在后面, 所以按消息时间取最新的候选
+                    .append("ORDER BY chat_messages.timestamp DESC, $table.docid DESC ")
+                    .append("LIMIT ${MessageSearchIndex.MAX_CANDIDATES}")
+                    .toString()
+                val args = if (roomId != null) arrayOf<Any>(match, roomId) else arrayOf<Any>(match)
+
+                val page = chatDao.searchCandidates(SimpleSQLiteQuery(sql, args))
+                    .map { Triple(it.rowId, it.timestamp, MessageSearchIndex.score(it.matchInfo)) }
+                    .sortedWith(
+                        compareByDescending<Triple<Long, Long, Double>> { it.third }
+                            .thenByDescending { it.second }
+                            .thenByDescending { it.first }
+                    )
+                    .drop(offset)
+                    .take(limit)
+                    .map { it.first }
+                if (page.isEmpty()) return@withContext emptyList()
+
+                val rows = chatDao.getMessagesByRowIds(page).associateBy { it.rowId }
+                val ordered = page.mapNotNull { rows[it]?.message }
+                toMessages(ordered).zip(ordered) { message, entity ->
+                    SearchResult(
+                        entity.roomId,
+                        message,
+                        MessageSearchIndex.snippet(message.content, query, "**", "**")
+                    )
+                }
+            } catch (e: Exception) {
+                emptyList()
+            }
+        }
+    }
+
+    data class SearchResult(
+        val roomId: String,
+        val message: Message,
+        val snippet: String
+    )
+
+    data class RoomActivity(
+        val roomId: String,
+        val unreadCount: Int,
+        val lastMessageAt: Long,
+        val preview: String
+    )
+
     data class CacheStats(
         val roomCount: Int,
         val totalMessages: Int,
@@ -0,0 +1,175 @@
+package com.firefly.oshe.lunli.data.ChatRoom.cache
+
+import androidx.sqlite.db.SupportSQLiteDatabase
+import com.firefly.oshe.lunli.data.ChatRoom.Message
+import java.nio.ByteBuffer
+import java.nio.ByteOrder
+import kotlin.math.ln
+
+/**
+ * 聊天缓存的全文索引: chat_messages_fts 是以 chat_messages 为外部内容的 FTS4 表, 只索引 search_text 列.
+ * search_text 只有文本消息才有 (图片消息为空), 连续的中日韩文字切成相邻的两字组, 其余按词切分,
+ * 由触发器随 chat_messages 的增删改同步.
+ */
+internal object MessageSearchIndex {
+
+    const val TABLE = "chat_messages_fts"
+
+    // 参与打分的候选上限, 按消息时间最新优先截取, 打分与排序的开销与缓存总量无关
+    const val MAX_CANDIDATES = 1000
+
+    private const val SNIPPET_BEFORE = 20
+    private const val SNIPPET_LENGTH = 80
+
+    // BM25 参数
+    private const val K1 = 1.2
+    private const val B = 0.75
+
+    fun create(db: SupportSQLiteDatabase) {
+        db.execSQL("CREATE VIRTUAL TABLE IF NOT EXISTS `$TABLE` USING fts4(content=\"chat_messages\", `search_text`)")
+        // 外部内容表删除索引时要读取旧内容, 所以删除必须在内容行变化之前
+        db.execSQL(
+            "CREATE TRIGGER IF NOT EXISTS `${TABLE}_ai` AFTER INSERT ON `chat_messages` " +
+                "WHEN new.`search_text` != '' BEGIN " +
+                "INSERT INTO `$TABLE`(docid, `search_text`) VALUES (new.rowid, new.`search_text`); END"
+        )
+        db.execSQL(
+            "CREATE TRIGGER IF NOT EXISTS `${TABLE}_bd` BEFORE DELETE ON `chat_messages` " +
+                "WHEN old.`search_text` != '' BEGIN " +
+                "DELETE FROM `$TABLE` WHERE docid = old.rowid; END"
+        )
+        db.execSQL(
+            "CREATE TRIGGER IF NOT EXISTS `${TABLE}_bu` BEFORE UPDATE ON `chat_messages` " +
+                "WHEN old.`search_text` != '' BEGIN " +
+                "DELETE FROM `$TABLE` WHERE docid = old.rowid; END"
+        )
+        db.execSQL(
+            "CREATE TRIGGER IF NOT EXISTS `${TABLE}_au` AFTER UPDATE ON `chat_messages` " +
+                "WHEN new.`search_text` != '' BEGIN " +
+                "INSERT INTO `$TABLE`(docid, `search_text`) VALUES (new.rowid, new.`search_text`); END"
+        )
+    }
+
+    /**
+     * 消息写入 search_text 列的内容, 图片 (包括内联的 base64 图片) 返回空串, 不进索引.
+     */
+    fun indexText(content: String, contentType: String): String {
+        if (contentType != Message.TYPE_TEXT || isInlineImage(content)) return ""
+        return tokenRuns(content).flatten().joinToString(" ")
+    }
+
+    /**
+     * 把用户输入转成 MATCH 表达式, 各段之间为 AND; 多字的中日韩段作为短语匹配,
+     * 最后一段是词或单字时按前缀匹配. 没有可搜索的内容时返回 null.
+     */
+    fun matchQuery(query: String): String? {
+        val runs = tokenRuns(query)
+        if (runs.isEmpty()) return null
+        return runs.mapIndexed { index, run ->
+            val prefix = if (index == runs.lastIndex) "*" else ""
+            if (run.size == 1) "\"${run[0]}$prefix\"" else "\"${run.joinToString(" ")}\""
+        }.joinToString(" ")
+    }
+
+    /**
+     * 由 matchinfo(fts, 'pcnalx') 计算 BM25 分数, 越大越相关.
+     */
+    fun score(matchInfo: ByteArray): Double {
+        val info = ByteBuffer.wrap(matchInfo).order(ByteOrder.nativeOrder()).asIntBuffer()
+        val phrases = info[0]
+        val columns = info[1]
+        val documents = info[2].toDouble()
+        var score = 0.0
+        for (phrase in 0 until phrases) {
+            for (column in 0 until columns) {
+                val hits = 3 + 2 * columns + 3 * (phrase * columns + column)
+                val frequency = info[hits].toDouble()
+                if (frequency == 0.0) continue
+                val matchingDocuments = info[hits + 2].toDouble()
+                val averageLength = maxOf(info[3 + column], 1).toDouble()
+                val length = info[3 + columns + column].toDouble()
+                val idf = ln(1 + (documents - matchingDocuments + 0.5) / (matchingDocuments + 0.5))
+                score += idf * frequency * (K1 + 1) / (frequency + K1 * (1 - B + B * length / averageLength))
+            }
+        }
+        return score
+    }
+
+    /**
+     * 从原文中截取第一处命中附近的片段, 命中的部分用 open/close 包起来.
+     */
+    fun snippet(content: String, query: String, open: String, close: String): String {
+        val terms = query.split(Regex("\\s+")).filter { it.isNotEmpty() }.map { it.lowercase() }
+        val lower = content.lowercase()
+        val first = terms.map { lower.indexOf(it) }.filter { it >= 0 }.minOrNull() ?: 0
+        val start = maxOf(0, first - SNIPPET_BEFORE)
+        val end = minOf(content.length, start + SNIPPET_LENGTH)
+
+        val builder = StringBuilder()
+        if (start > 0) builder.append("…")
+        var position = start
+        while (position < end) {
+            val term = terms.filter { lower.startsWith(it, position) }.maxByOrNull { it.length }
+            if (term == null) {
+                builder.append(content[position])
+                position++
+            } else {
+                val termEnd = minOf(end, position + term.length)
+                builder.append(open).append(content, position, termEnd).append(close)
+                position = termEnd
+            }
+        }
+        if (end < content.length) builder.append("…")
+        return builder.toString().replace('\n', ' ')
+    }
+
+    // 中日韩文字切成相邻的两字组 (单字保留为一组), 字母数字按词切分并转小写
+    private fun tokenRuns(text: String): List<List<String>> {
+        val runs = mutableListOf<List<String>>()
+        var index = 0
+        while (index < text.length) {
+            val codePoint = text.codePointAt(index)
+            when {
+                isCjk(codePoint) -> {
+                    val chars = mutableListOf<String>()
+                    while (index < text.length && isCjk(text.codePointAt(index))) {
+                        val cp = text.codePointAt(index)
+                        chars.add(String(Character.toChars(cp)))
+                        index += Character.charCount(cp)
+                    }
+                    runs.add(if (chars.size == 1) chars else chars.zipWithNext { a, b -> a + b })
+                }
+                Character.isLetterOrDigit(codePoint) -> {
+                    val start = index
+                    while (index < text.length) {
+                        val cp = text.codePointAt(index)
+                        if (!Character.isLetterOrDigit(cp) || isCjk(cp)) break
+                        index += Character.charCount(cp)
+                    }
+                    runs.add(listOf(text.substring(start, index).lowercase()))
+                }
+                else -> index += Character.charCount(codePoint)
+            }
+        }
+        return runs
+    }
+
+    private fun isCjk(codePoint: Int): Boolean {
+        return when (Character.UnicodeScript.of(codePoint)) {
+            Character.UnicodeScript.HAN,
+            Character.UnicodeScript.HIRAGANA,
+            Character.UnicodeScript.KATAKANA,
+            Character.UnicodeScript.HANGUL -> true
+            else -> false
+        }
+    }
+
+    // 与 ChatAdapter 的判断一致: data URI 或常见图片格式开头的长 base64
+    fun isInlineImage(content: String): Boolean {
+        val trimmed = content.trim()
+        if (trimmed.startsWith("data:image/")) return true
+        if (trimmed.length < 100) return false
+        return trimmed.startsWith("/9j/") || trimmed.startsWith("iVBORw0KGgo") ||
+            trimmed.startsWith("R0lGOD") || trimmed.startsWith("UklGR")
+    }
+}
@@ -14,6 +14,7 @@ class SeparateUserCacheManager(private val context: Context) {
 
     private val basicInfoMemoryCache = mutableMapOf<String, UserBasicInfo>()
     private val imageMemoryCache = mutableMapOf<String, UserImageInfo>()
+    private var defaultUserImage: String? = null
 
     companion object {
         private const val CACHE_DURATION = 7 * 24 * 60 * 60 * 1000L
@@ -22,6 +23,12 @@ class SeparateUserCacheManager(private val context: Context) {
     }
 
     suspend fun getUserBasicInfo(userId: String): UserBasicInfo? {
+        cachedBasicInfo(userId)?.let { return it }
+        resolveUsers(listOf(userId), images = false)
+        return cachedBasicInfo(userId)
+    }
+
+    private fun cachedBasicInfo(userId: String): UserBasicInfo? {
         basicInfoMemoryCache[userId]?.let { cachedInfo ->
             if (!cachedInfo.isExpired()) {
                 return cachedInfo
@@ -37,33 +44,7 @@ class SeparateUserCacheManager(private val context: Context) {
                 }
             }
         }
-
-        return fetchAndCacheBasicInfo(userId)
-    }
-
-    private suspend fun fetchAndCacheBasicInfo(userId: String): UserBasicInfo? {
-        return withContext(Dispatchers.IO) {
-            try {
-                val user = SBClient.fetchUser(userId)
-                if (user != null) {
-                    val basicInfo = UserBasicInfo(
-                        userId = userId,
-                        userName = user.name
-                    )
-                    saveUserBasicInfo(basicInfo)
-                    basicInfo
-                } else {
-                    val defaultInfo = UserBasicInfo(
-                        userId = userId,
-                        userName = "未知用户"
-                    )
-                    saveUserBasicInfo(defaultInfo)
-                    defaultInfo
-                }
-            } catch (e: Exception) {
-                null
-            }
-        }
+        return null
     }
 
     fun saveUserBasicInfo(userInfo: UserBasicInfo) {
@@ -74,6 +55,13 @@ class SeparateUserCacheManager(private val context: Context) {
     }
 
     suspend fun getUserImageInfo(userId: String): UserImageInfo? {
+        cachedImageInfo(userId)?.let { return it }
+        resolveUsers(listOf(userId), names = false)
+        return cachedImageInfo(userId)
+    }
+
+    // 过期的条目也会被读入内存缓存, 供版本比对使用
+    private fun cachedImageInfo(userId: String): UserImageInfo? {
         imageMemoryCache[userId]?.let { cachedInfo ->
             if (!cachedInfo.isExpired()) {
                 return cachedInfo
@@ -89,41 +77,15 @@ class SeparateUserCacheManager(private val context: Context) {
                 }
             }
         }
-
-        return fetchAndCacheImageInfo(userId)
-    }
-
-    private suspend fun fetchAndCacheImageInfo(userId: String): UserImageInfo? {
-        return withContext(Dispatchers.IO) {
-            try {
-                val user = SBClient.fetchUser(userId)
-                if (user != null && user.image.isNotBlank()) {
-                    val imageInfo = UserImageInfo(
-                        userId = userId,
-                        userImage = user.image
-                    )
-                    saveUserImageInfo(imageInfo)
-                    imageInfo
-                } else {
-                    val defaultImage = getDefaultUserImage()
-                    val imageInfo = UserImageInfo(
-                        userId = userId,
-                        userImage = defaultImage
-                    )
-                    saveUserImageInfo(imageInfo)
-                    imageInfo
-                }
-            } catch (e: Exception) {
-                null
-            }
-        }
+        return null
     }
 
     private suspend fun getDefaultUserImage(): String {
+        defaultUserImage?.let { return it }
         return withContext(Dispatchers.Main) {
             val drawable = context.getDrawable(android.R.drawable.ic_menu_report_image)
             ImageUtils.drawableToBase64(drawable!!) ?: "NULL"
-        }
+        }.also { defaultUserImage = it }
     }
 
     fun saveUserImageInfo(imageInfo: UserImageInfo) {
@@ -133,9 +95,109 @@ class SeparateUserCacheManager(private val context: Context) {
             .apply()
     }
 
+    /**
+     * 批量预取: 两级缓存都有效的用户跳过, 其余用户按缺失的缓存层批量取回,
+     * 之后的 getUserDisplayInfo 直接命中缓存.
+     */
+    suspend fun prefetchUsers(userIds: Collection<String>) {
+        resolveUsers(userIds)
+    }
+
+    /**
+     * 按缺失的缓存层选择投影: 两层都缺的用户一次取回名字和头像, 只缺一层的只取该层的列.
+     * 过期但带版本的头像先只取版本比对, 版本未变时刷新缓存时间而不重新下载.
+     * 请求失败时该部分不写缓存, 已成功的部分照常写入.
+     */
+    private suspend fun resolveUsers(userIds: Collection<String>, names: Boolean = true, images: Boolean = true) {
+        val ids = userIds.distinct()
+        val needNames = if (names) ids.filter { cachedBasicInfo(it) == null }.toMutableSet() else mutableSetOf()
+        val needImages = mutableSetOf<String>()
+        val staleImages = mutableMapOf<String, UserImageInfo>()
+        if (images) {
+            ids.filter { cachedImageInfo(it) == null }.forEach { userId ->
+                val expired = imageMemoryCache[userId]
+                if (expired != null && expired.imageVersion.isNotEmpty()) {
+                    staleImages[userId] = expired
+                } else {
+                    needImages.add(userId)
+                }
+            }
+        }
+        if (needNames.isEmpty() && needImages.isEmpty() && staleImages.isEmpty()) return
+
+        val basicInfos = mutableListOf<UserBasicInfo>()
+        val imageInfos = mutableListOf<UserImageInfo>()
+        withContext(Dispatchers.IO) {
+            try {
+                if (staleImages.isNotEmpty()) {
+                    val versions = SBClient.fetchAvatarVersions(staleImages.keys)
+                        .associate { it.id to it.image_version.orEmpty() }
+                    staleImages.forEach { (userId, cachedInfo) ->
+                        if (versions[userId] == cachedInfo.imageVersion) {
+                            imageInfos.add(cachedInfo.copy(lastUpdateTime = System.currentTimeMillis()))
+                        } else {
+                            needImages.add(userId)
+                        }
+                    }
+                }
+
+                val both = needNames intersect needImages
+                if (both.isNotEmpty()) {
+                    val users = SBClient.fetchUsers(both).associateBy { it.id }
+                    both.forEach { userId ->
+                        val user = users[userId]
+                        basicInfos.add(UserBasicInfo(userId, user?.name ?: "未知用户"))
+                        imageInfos.add(toImageInfo(userId, user?.image, user?.image_version))
+                    }
+                    needNames.removeAll(both)
+                    needImages.removeAll(both)
+                }
+
+                if (needNames.isNotEmpty()) {
+                    val users = SBClient.fetchUserNames(needNames).associateBy { it.id }
+                    needNames.forEach { userId ->
+                        basicInfos.add(UserBasicInfo(userId, users[userId]?.name ?: "未知用户"))
+                    }
+                }
+
+                if (needImages.isNotEmpty()) {
+                    val avatars = SBClient.fetchUserAvatars(needImages).associateBy { it.id }
+                    needImages.forEach { userId ->
+                        val avatar = avatars[userId]
+                        imageInfos.add(toImageInfo(userId, avatar?.image, avatar?.image_version))
+                    }
+                }
+            } catch (e: Exception) { }
+        }
+        saveAll(basicInfos, imageInfos)
+    }
+
+    private suspend fun toImageInfo(userId: String, image: String?, version: String?): UserImageInfo {
+        return if (!image.isNullOrBlank()) {
+            UserImageInfo(userId, image, imageVersion = version.orEmpty())
+        } else {
+            UserImageInfo(userId, getDefaultUserImage())
+        }
+    }
+
+    private fun saveAll(basicInfos: List<UserBasicInfo>, imageInfos: List<UserImageInfo>) {
+        if (basicInfos.isEmpty() && imageInfos.isEmpty()) return
+        val editor = sharedPref.edit()
+        basicInfos.forEach { info ->
+            basicInfoMemoryCache[info.userId] = info
+            editor.putString("${PREFIX_BASIC}${info.userId}", info.toJson())
+        }
+        imageInfos.forEach { info ->
+            imageMemoryCache[info.userId] = info
+            editor.putString("${PREFIX_IMAGE}${info.userId}", info.toJson())
+        }
+        editor.apply()
+    }
+
     suspend fun getUserDisplayInfo(userId: String): Pair<String, String> {
-        val basicInfo = getUserBasicInfo(userId)
-        val imageInfo = getUserImageInfo(userId)
+        resolveUsers(listOf(userId))
+        val basicInfo = cachedBasicInfo(userId)
+        val imageInfo = cachedImageInfo(userId)
 
         return Pair(
             basicInfo?.userName ?: "未知用户",
@@ -213,7 +275,6 @@ class SeparateUserCacheManager(private val context: Context) {
 
     suspend fun refreshUserInfo(userId: String) {
         clearUserCache(userId)
-        getUserBasicInfo(userId)
-        getUserImageInfo(userId)
+        resolveUsers(listOf(userId))
     }
 }
\ No newline at end of file
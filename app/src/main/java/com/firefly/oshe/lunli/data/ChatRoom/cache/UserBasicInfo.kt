@@ -39,7 +39,9 @@ data class UserBasicInfo(
 data class UserImageInfo(
     val userId: String,
     val userImage: String,
-    val lastUpdateTime: Long = System.currentTimeMillis()
+    val lastUpdateTime: Long = System.currentTimeMillis(),
+    // 服务器上的头像版本, 为空表示未知 (旧数据或默认头像), 过期后只能重新下载
+    val imageVersion: String = ""
 ) {
     fun isExpired(): Boolean {
         val sevenDaysInMillis = 7 * 24 * 60 * 60 * 1000L
@@ -51,6 +53,7 @@ data class UserImageInfo(
             put("userId", userId)
             put("userImage", userImage)
             put("lastUpdateTime", lastUpdateTime)
+            put("imageVersion", imageVersion)
         }.toString()
     }
 
@@ -61,7 +64,8 @@ data class UserImageInfo(
                 UserImageInfo(
                     userId = obj.getString("userId"),
                     userImage = obj.getString("userImage"),
-                    lastUpdateTime = obj.getLong("lastUpdateTime")
+                    lastUpdateTime = obj.getLong("lastUpdateTime"),
+                    imageVersion = obj.optString("imageVersion")
                 )
             } catch (e: Exception) {
                 null
@@ -0,0 +1,73 @@
+package com.firefly.oshe.lunli.data
+
+import androidx.room.RoomDatabase
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.Executor
+import java.util.concurrent.LinkedBlockingQueue
+import java.util.concurrent.ThreadPoolExecutor
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicInteger
+
+/**
+ * Room 数据库统一使用 WAL: 读取在有界的线程池上并发执行, 写入 (Room 的事务执行器) 只有一个线程.
+ * WAL 下读不阻塞写, 写也不阻塞读, 打开房间时的读取不必再排在同步写入后面.
+ *
+ * 每个任务排队等待线程的时间按执行器和 SQL 语句记录, 见 getWaitStats.
+ * 写入在进入写线程之前还会在 Room 内部的串行队列中排队, 这部分不在统计之内.
+ */
+object DatabaseExecutors {
+    // 不超过 WAL 模式下的默认读连接数, 否则多出的线程只会在连接池上等待
+    private const val READER_POOL_SIZE = 4
+    private const val KEEP_ALIVE_SECONDS = 30L
+
+    private class Wait(val database: String, val nanos: Long)
+
+    // 当前线程正在执行的任务的等待时间, 供查询回调按语句归类
+    private val currentWait = ThreadLocal<Wait>()
+    private val stats = ConcurrentHashMap<String, QueryWaitStats>()
+
+    fun <T : RoomDatabase> configure(builder: RoomDatabase.Builder<T>, database: String): RoomDatabase.Builder<T> {
+        return builder
+            .setJournalMode(RoomDatabase.JournalMode.WRITE_AHEAD_LOGGING)
+            .setQueryExecutor(timed(database, "reader", pool(READER_POOL_SIZE, "$database-reader")))
+            .setTransactionExecutor(timed(database, "writer", pool(1, "$database-writer")))
+            // 回调直接在执行查询的线程上运行, 才能读到该线程的等待时间
+            .setQueryCallback({ sql, _ -> recordQuery(sql) }, Executor { it.run() })
+    }
+
+    fun getWaitStats(): List<QueryWaitStats> = stats.values.sortedBy { it.name }
+
+    private fun statsFor(name: String): QueryWaitStats = stats.getOrPut(name) { QueryWaitStats(name) }
+
+    private fun timed(database: String, executor: String, delegate: Executor): Executor {
+        val executorStats = statsFor("$database [$executor]")
+        return Executor { command ->
+            val queuedAt = System.nanoTime()
+            delegate.execute {
+                val wait = System.nanoTime() - queuedAt
+                executorStats.record(wait)
+                currentWait.set(Wait(database, wait))
+                try {
+                    command.run()
+                } finally {
+                    currentWait.remove()
+                }
+            }
+        }
+    }
+
+    private fun recordQuery(sql: String) {
+        val wait = currentWait.get() ?: return
+        // IN (?, ?, ...) 的参数个数不同也算同一条语句
+        val normalized = sql.replace(Regex("\\?(\\s*,\\s*\\?)+"), "?...").trim()
+        statsFor("${wait.database}: $normalized").record(wait.nanos)
+    }
+
+    // 空闲的线程会退出, 关闭的数据库不会一直占着线程
+    private fun pool(size: Int, name: String): Executor {
+        val counter = AtomicInteger()
+        return ThreadPoolExecutor(size, size, KEEP_ALIVE_SECONDS, TimeUnit.SECONDS, LinkedBlockingQueue()) { runnable ->
+            Thread(runnable, "$name-${counter.incrementAndGet()}")
+        }.apply { allowCoreThreadTimeOut(true) }
+    }
+}
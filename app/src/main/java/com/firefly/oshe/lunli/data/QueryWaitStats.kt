@@ -0,0 +1,32 @@
+package com.firefly.oshe.lunli.data
+
+import java.util.concurrent.atomic.AtomicLong
+
+/**
+ * 数据库任务在执行器中排队等待线程的时间, 按执行器或 SQL 语句分别汇总, 单位微秒.
+ */
+class QueryWaitStats(val name: String) {
+    private val count = AtomicLong()
+    private val totalMicros = AtomicLong()
+    private val maxMicros = AtomicLong()
+
+    internal fun record(waitNanos: Long) {
+        val micros = waitNanos / 1_000
+        count.incrementAndGet()
+        totalMicros.addAndGet(micros)
+        maxMicros.accumulateAndGet(micros) { a, b -> maxOf(a, b) }
+    }
+
+    fun getCount(): Long = count.get()
+
+    fun getAverageWaitMicros(): Long {
+        val count = count.get()
+        return if (count == 0L) 0 else totalMicros.get() / count
+    }
+
+    fun getMaxWaitMicros(): Long = maxMicros.get()
+
+    override fun toString(): String {
+        return "$name{count=${count.get()}, avgWait=${getAverageWaitMicros()}us, maxWait=${maxMicros.get()}us}"
+    }
+}
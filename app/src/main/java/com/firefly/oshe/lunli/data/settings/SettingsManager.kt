@@ -15,12 +15,12 @@ import androidx.room.TypeConverter
 import androidx.room.TypeConverters
 import androidx.sqlite.SQLiteConnection
 import com.firefly.oshe.lunli.MainActivity
+import com.firefly.oshe.lunli.data.DatabaseExecutors
 import kotlinx.coroutines.Dispatchers
 import kotlinx.coroutines.withContext
 import kotlinx.serialization.Serializable
 import kotlinx.serialization.encodeToString
 import kotlinx.serialization.json.Json
-import java.util.concurrent.Executors
 
 sealed class SettingValue {
     data class StringValue(val value: String) : SettingValue()
@@ -168,12 +168,10 @@ abstract class SettingsDatabase : RoomDatabase() {
         }
 
         private fun createInstance(context: Context): SettingsDatabase {
-            return Room.databaseBuilder(
-                context.applicationContext,
-                SettingsDatabase::class.java,
+            return DatabaseExecutors.configure(
+                Room.databaseBuilder(context.applicationContext, SettingsDatabase::class.java, "app_settings.db"),
                 "app_settings.db"
             )
-                .setQueryExecutor(Executors.newSingleThreadExecutor())
                 .addCallback(
                     object : RoomDatabase.Callback() {
                         override fun onCreate(connection: SQLiteConnection) {
@@ -13,6 +13,7 @@ import android.os.Looper;
 import androidx.core.content.FileProvider;
 
 import com.firefly.oshe.lunli.R;
+import com.firefly.oshe.lunli.client.NetworkStack;
 import com.firefly.oshe.lunli.data.NewVersion;
 import com.firefly.oshe.lunli.ui.dialog.updateLauncher.DownloadProgressView;
 import com.firefly.oshe.lunli.ui.dialog.updateLauncher.UpdateDialog;
@@ -239,7 +240,7 @@ public class UpdateLauncher {
     }
 
     private void downloadApk(String apkUrl, String tagName, DownloadProgressView progressView) {
-        OkHttpClient client = new OkHttpClient();
+        OkHttpClient client = NetworkStack.get(context).client();
         Request request = new Request.Builder().url(apkUrl).build();
         File apkFile = new File(dir, CACHE_APK_NAME);
 
@@ -235,7 +235,7 @@ class LoginScreen(
                 .create()
             progressDialog.show()
 
-            client = Client(context)
+            client = Client.getInstance(context)
             client.getData("UserData", inputUserId,
                 object : Client.ResultCallback {
                     override fun onSuccess(content: String) {
@@ -313,10 +313,14 @@ class LoginScreen(
 
     private fun getUserImage(id: String, callback : (String) -> Unit = {}) {
         CoroutineScope(Dispatchers.IO).launch {
-            val user = SBClient.fetchUser(id)
-            if (user != null) {
+            val avatar = try {
+                SBClient.fetchUserAvatars(listOf(id)).firstOrNull()
+            } catch (e: Exception) {
+                null
+            }
+            if (avatar != null) {
                 CoroutineScope(Dispatchers.Main).launch {
-                    callback(user.image)
+                    callback(avatar.image)
                 }
             } else {
                 CoroutineScope(Dispatchers.Main).launch {
@@ -76,6 +76,12 @@ class MainScreen(
         BackEventPublisher.registerListener(this)
     }
 
+    override fun onDetachedFromWindow() {
+        super.onDetachedFromWindow()
+        // 切换到其它界面 (登出等) 时主界面被整体移除, 不会再显示
+        chatRoomContent.release()
+    }
+
     override fun onBackPressed(): Boolean {
         return when (selectedTabIndex) {
             1 -> onCEPageBack()
@@ -6,6 +6,7 @@ import android.content.Context
 import android.graphics.*
 import android.graphics.drawable.*
 import android.text.InputType
+import android.util.Log
 import android.view.*
 import android.view.ViewGroup.LayoutParams.*
 import android.widget.*
@@ -26,7 +27,9 @@ import com.firefly.oshe.lunli.data.UserData
 import com.firefly.oshe.lunli.dp
 import com.firefly.oshe.lunli.Tools.ShowToast
 import com.firefly.oshe.lunli.client.Client
+import com.firefly.oshe.lunli.client.SupaBase.PollScheduler
 import com.firefly.oshe.lunli.client.SupaBase.SBClient
+import com.firefly.oshe.lunli.client.getAllFiles
 import com.firefly.oshe.lunli.data.ChatRoom.cache.MessageCacheManager
 import com.firefly.oshe.lunli.data.ChatRoom.cache.SeparateUserCacheManager
 import com.firefly.oshe.lunli.data.UserInformation
@@ -37,14 +40,14 @@ import com.firefly.oshe.lunli.utils.ImageUtils
 import com.firefly.oshe.lunli.ui.screens.MainScreenFeatures.ChatRoomFeatures.RoomAdapterView
 import com.firefly.oshe.lunli.ui.screens.MainScreenFeatures.ChatRoomFeatures.ChatAdapterView
 import com.firefly.oshe.lunli.utils.Iso8601Converter
+import kotlinx.coroutines.CancellationException
 import kotlinx.coroutines.CoroutineScope
 import kotlinx.coroutines.Dispatchers
 import kotlinx.coroutines.Job
-import kotlinx.coroutines.delay
-import kotlinx.coroutines.isActive
+import kotlinx.coroutines.SupervisorJob
+import kotlinx.coroutines.cancel
 import kotlinx.coroutines.launch
 import kotlinx.coroutines.withContext
-import org.json.JSONArray
 import org.json.JSONObject
 import java.util.*
 import kotlin.collections.mutableListOf
@@ -87,12 +90,17 @@ class ChatRoom(
     }
 
     private var messageSubscription: Job? = null
-    private var currentSubscription: Job? = null
-    private var lastPollingTimeZone: String = ""
 
-    private var pollingJob: Job? = null
+    // 历史分页: 先翻本地缓存, 缓存读完后改从服务器翻页
+    private var historyJob: Job? = null
+    private var oldestCursor: SBClient.MessageCursor? = null
+    private var hasMoreHistory: Boolean = false
+    private var historyFromServer: Boolean = false
 
-    private val processedMessageIds = mutableSetOf<String>()
+    // 界面内所有协程的父作用域, release 时一起取消 (取消协程即取消进行中的请求)
+    private val screenScope = CoroutineScope(SupervisorJob() + Dispatchers.IO)
+    private var roomLoadJob: Job? = null
+    private var activityJob: Job? = null
 
     fun interface OnBackClickListener {
         fun onBackClicked()
@@ -143,6 +151,13 @@ class ChatRoom(
         roomSelection?.let { mainView.addView(it) }
     }
 
+    /**
+     * 界面销毁时调用: 取消房间加载, 未读轮询, 历史分页, 消息订阅等所有进行中的任务.
+     */
+    fun release() {
+        screenScope.cancel()
+    }
+
     private fun initializeAdapters() {
         loadRooms()
 
@@ -150,9 +165,10 @@ class ChatRoom(
             context,
             userData,
             messageCacheManager,
-            Client(context),
+            Client.getInstance(context),
             { room ->
                 currentRoomId = room.id
+                screenScope.launch { markRoomRead(room.id, null) }
                 mainView.removeAllViews()
                 mainView.addView(chatRoom)
                 loadRoomMessages(room.id)
@@ -160,14 +176,14 @@ class ChatRoom(
                 roomSelectedListener?.onRoomSelected()
             },
             { room ->
-                CoroutineScope(Dispatchers.IO).launch { messageCacheManager.deleteRoom(room.id) }
+                screenScope.launch { messageCacheManager.deleteRoom(room.id) }
             },
             { room ->
                 // TODO:
             }
         )
 
-        chatAdapterView = ChatAdapterView()
+        chatAdapterView = ChatAdapterView(screenScope) { message -> loadImage(message) }
     }
 
     private fun addExitRoom(roomInfo: RoomInfo) {
@@ -185,8 +201,10 @@ class ChatRoom(
                     .build()
                 setOnClickListener {
                     unsubscribeFromMessages()
+                    historyJob?.cancel()
+                    currentRoomId = null
                     (chatAdapter as? ChatAdapterView.ChatAdapter)?.getMessages()?.let { messages ->
-                        CoroutineScope(Dispatchers.IO).launch {
+                        screenScope.launch {
                             messageCacheManager.saveMessagesToCache(roomInfo.id, messages)
                         }
                     }
@@ -319,8 +337,8 @@ class ChatRoom(
                 )
             )
             currentRoomId?.let { roomId ->
-                SBClient.sendMessage(currentId, roomId, userData.userId, message) {
-                    if (!it) {
+                screenScope.launch(Dispatchers.Main) {
+                    if (!SBClient.sendMessage(currentId, roomId, userData.userId, message)) {
                         context.ShowToast("$currentId: 发送失败")
                     }
                 }
@@ -328,6 +346,50 @@ class ChatRoom(
         }
     }
 
+    /**
+     * 原图优先从本地文件读取, 没有缓存时从服务器取回并存入本地.
+     */
+    private suspend fun loadImage(message: Message): Bitmap? {
+        val cached = message.image ?: messageCacheManager.getImageRef(message.id)
+        cached?.let { image -> messageCacheManager.loadImage(image)?.let { return it } }
+        val data = SBClient.fetchAttachment(message.id) ?: return null
+        val image = messageCacheManager.saveAttachment(message.id, data) ?: return ImageUtils.base64ToBitmap(data)
+        return messageCacheManager.loadImage(image)
+    }
+
+    /**
+     * 图片消息: 原图作为附件单独上传, 消息本身只带缩略图.
+     */
+    private fun sendImageToClient(bitmap: Bitmap) {
+        val roomId = currentRoomId ?: return
+        val currentId = UUID.randomUUID().toString()
+        val image = UserInformationPref(context).getInformation(userData.userId)?.userImage ?: "NULL"
+        screenScope.launch(Dispatchers.Main) {
+            val (data, thumbnail) = withContext(Dispatchers.Default) {
+                ImageUtils.bitmapToBase64(bitmap) to
+                    ImageUtils.bitmapToBase64(ImageUtils.thumbnailBitmap(bitmap, THUMBNAIL_SIZE), quality = 60)
+            }
+            chatAdapterView.cacheAttachment(currentId, bitmap)
+            val sent = Message(
+                currentId,
+                userData.userName + " (" + userData.userId + ")",
+                image,
+                thumbnail,
+                Iso8601Converter.nowAsUtcZeroOffset(),
+                Message.TYPE_IMAGE
+            )
+            addMessage(sent)
+            if (!SBClient.sendAttachment(currentId, roomId, userData.userId, data, thumbnail)) {
+                context.ShowToast("$currentId: 发送失败")
+                return@launch
+            }
+            // 原图已在本地, 直接存入缓存, 以后不必再下载
+            messageCacheManager.saveImage(data)?.let { stored ->
+                messageCacheManager.saveMessagesToCache(roomId, listOf(sent.copy(image = stored)))
+            }
+        }
+    }
+
     fun createEndBarContainer(): LinearLayout {
         return LinearLayout(context).apply {
             layoutParams = LayoutParams(MATCH_PARENT, MATCH_PARENT)
@@ -339,8 +401,7 @@ class ChatRoom(
                     interaction.ImageRequestCallBack("ChatRoom") { bitmap ->
                         cropDialog = CropDialog(context)
                         showCropDialog(bitmap) { cropBitmap ->
-                            val base64 = ImageUtils.bitmapToBase64(cropBitmap)
-                            sendMessageToClient(base64)
+                            sendImageToClient(cropBitmap)
                         }
                     }
                 },
@@ -529,10 +590,11 @@ class ChatRoom(
                 content?.let { roomJson ->
                     try {
                         val roomInfo = parseRoomInfo(roomJson)
-                        CoroutineScope(Dispatchers.IO).launch {
+                        screenScope.launch {
                             messageCacheManager.saveRoom(roomInfo, true)
                         }
                         roomAdapterView.addRoomIfNotExists(roomInfo)
+                        watchRoomActivity()
                         context.ShowToast("已加入房间: $roomId")
                     } catch (e: Exception) {
                         context.ShowToast("房间信息解析失败")
@@ -641,10 +703,13 @@ class ChatRoom(
                 uploadRoomToClient(isHiddenRoom, newRoom, object : Client.ResultCallback {
                     override fun onSuccess(content: String?) {
                         roomAdapterView.addRoom(newRoom)
-                        SBClient.createRoom(newRoom.id)
+                        watchRoomActivity()
+                        screenScope.launch {
+                            SBClient.createRoom(newRoom.id)
+                        }
 
                         if (isHiddenRoom) {
-                            CoroutineScope(Dispatchers.IO).launch {
+                            screenScope.launch {
                                 messageCacheManager.saveRoom(newRoom, true)
                             }
                             val clipboard = context.getSystemService(Context.CLIPBOARD_SERVICE) as ClipboardManager
@@ -652,7 +717,7 @@ class ChatRoom(
                             clipboard.setPrimaryClip(clip)
                             context.ShowToast("房间ID已复制到剪切板")
                         } else {
-                            CoroutineScope(Dispatchers.IO).launch {
+                            screenScope.launch {
                                 messageCacheManager.saveRoom(newRoom, false)
                             }
                             context.ShowToast("房间创建成功")
@@ -696,37 +761,140 @@ class ChatRoom(
                 layoutManager = LinearLayoutManager(context).apply {
                     stackFromEnd = true
                 }
-                chatAdapter = chatAdapterView.createAdapter()
+                chatAdapter = chatAdapterView.createAdapter().apply {
+                    onTrimmedStart = {
+                        // 窗口开头被丢弃的消息都在缓存中, 向上翻页重新从缓存读
+                        historyFromServer = false
+                        hasMoreHistory = true
+                        oldestCursor = firstMessage()?.let { SBClient.MessageCursor(it.createdAt) }
+                    }
+                }
                 adapter = chatAdapter
+                addOnScrollListener(object : RecyclerView.OnScrollListener() {
+                    override fun onScrolled(recyclerView: RecyclerView, dx: Int, dy: Int) {
+                        if (dy <= 0 && !recyclerView.canScrollVertically(-1)) {
+                            currentRoomId?.let { loadOlderMessages(it) }
+                        } else if (dy >= 0 && !recyclerView.canScrollVertically(1)) {
+                            currentRoomId?.let { loadNewerMessages(it) }
+                        }
+                    }
+                })
             }
             addView(chatRecyclerView)
         }
     }
 
     private fun addMessage(message: Message) {
-        (chatAdapter as? ChatAdapterView.ChatAdapter)?.addMessage(message)
+        val adapter = chatAdapter as? ChatAdapterView.ChatAdapter ?: return
+        if (adapter.hasNewer) {
+            // 窗口停在较早的位置, 先回到最新一页再显示自己发送的消息
+            currentRoomId?.let { roomId -> jumpToLatest(roomId, message) }
+            return
+        }
+        adapter.addMessage(message)
         chatRecyclerView?.scrollToPosition((chatAdapter?.itemCount ?: 1) - 1)
     }
 
     private fun loadRooms() {
-        client = Client(context)
+        client = Client.getInstance(context)
         if (isLoading) {
             context.ShowToast("正在加载房间列表, 请稍后...")
             return
         }
         isLoading = true
-        loadRoomsFromClient(false)
+        roomLoadJob = screenScope.launch {
+            try {
+                if (loadRoomsFromClient(false)) loadRoomsFromClient(true)
+            } finally {
+                isLoading = false
+            }
+            withContext(Dispatchers.Main) { watchRoomActivity() }
+        }
+    }
+
+    /**
+     * 所有房间共用一个轮询计未读: 只取消息索引, 不取消息内容, 打开的房间直接记为已读.
+     */
+    private fun watchRoomActivity() {
+        activityJob?.cancel()
+        val roomIds = roomAdapterView.getRooms().map { it.id }
+        if (roomIds.isEmpty()) return
+        activityJob = screenScope.launch {
+            val known = messageCacheManager.getRoomActivities(roomIds)
+            withContext(Dispatchers.Main) { roomAdapterView.updateActivities(known) }
+            // 从最久没有动静的房间开始追, 但不追溯太久以前的消息
+            val since = maxOf(
+                known.minOfOrNull { it.lastMessageAt } ?: System.currentTimeMillis(),
+                System.currentTimeMillis() - ACTIVITY_LOOKBACK_MS
+            )
+            var cursor = SBClient.MessageCursor(Iso8601Converter.toUtcZeroOffsetFormat(since))
+            // 写缓存等失败时记录后退避, 再从最后处理完的消息继续, 未读数不重复也不遗漏
+            val retry = PollScheduler(ACTIVITY_RETRY_MIN_MS, ACTIVITY_RETRY_MAX_MS)
+            while (true) {
+                try {
+                    SBClient.subscribeRoomActivity(roomIds, cursor).collect { rows ->
+                        val timestamps = rows.groupBy(
+                            { it.room_id },
+                            { Iso8601Converter.toUtcZeroOffsetTimestamp(it.created_at) }
+                        )
+                        val updated = messageCacheManager.recordRoomMessages(timestamps, currentRoomId)
+                        rows.lastOrNull()?.let { cursor = SBClient.MessageCursor(it.created_at, it.id) }
+                        retry.onResult(true)
+                        if (updated.isNotEmpty()) {
+                            withContext(Dispatchers.Main) { roomAdapterView.updateActivities(updated) }
+                        }
+                    }
+                } catch (e: CancellationException) {
+                    throw e
+                } catch (e: Exception) {
+                    Log.w(TAG, "Watching room activity failed: ${e.message}")
+                }
+                retry.onResult(false)
+                retry.awaitNext()
+            }
+        }
+    }
+
+    private suspend fun markRoomRead(roomId: String, latest: Message?) {
+        val preview = latest?.let { (chatAdapter as? ChatAdapterView.ChatAdapter)?.previewText(it) }
+        val lastMessageAt = latest?.let { Iso8601Converter.toUtcZeroOffsetTimestamp(it.createdAt) } ?: 0L
+        messageCacheManager.markRoomRead(roomId, preview, lastMessageAt)?.let { activity ->
+            withContext(Dispatchers.Main) { roomAdapterView.updateActivities(listOf(activity)) }
+        }
     }
 
-    private fun loadRoomsFromClient(hide: Boolean) {
+    private suspend fun loadRoomsFromClient(hide: Boolean): Boolean {
         val path =  if (hide) "HideRoomInfo" else "RoomInfo"
-        client.getDir(path, object : Client.ResultCallback {
-            override fun onSuccess(content: String) { processRoomDirectory(path, content) }
-            override fun onFailure(error: String) {
-                isLoading = false
+        return try {
+            // 列表只流式读取一次, 房间名与下载都来自这份索引
+            var listed = false
+            val serverRoomIds = mutableListOf<String>()
+            client.getAllFiles(path, ROOM_FETCH_PARALLELISM, ROOM_FETCH_TIMEOUT_MS)
+                .collect { file ->
+                    listed = true
+                    val content = file.content
+                    if (content == null) {
+                        // 下载失败的房间仍在服务器目录中, 不能当作已移除
+                        serverRoomIds.add(file.fileName)
+                        return@collect
+                    }
+                    runCatching { parseRoomInfo(content) }.onSuccess { roomInfo ->
+                        serverRoomIds.add(roomInfo.id)
+                        if (!hide) processVisibleRoom(roomInfo)
+                        else processHideRoom(roomInfo)
+                    }
+                }
+
+            if (listed) processRoomComparison(serverRoomIds, hide)
+            true
+        } catch (e: CancellationException) {
+            throw e
+        } catch (e: Exception) {
+            withContext(Dispatchers.Main) {
                 context.ShowToast("房间{$path}加载失败, 请重试")
             }
-        })
+            false
+        }
     }
 
     private fun uploadRoomToClient(hide: Boolean, roomInfo: RoomInfo, callback: Client.ResultCallback) {
@@ -747,51 +915,6 @@ class ChatRoom(
         }
     }
 
-    private fun processRoomDirectory(path: String, content: String) {
-        runCatching {
-            val jsonArray = JSONArray(content)
-            val rooms = buildList {
-                for (i in 0 until jsonArray.length()) {
-                    val json = jsonArray.optJSONObject(i) ?: continue
-                    val roomName = json.optString("name").takeIf { it.endsWith(".json") } ?: continue
-                    add(roomName.removeSuffix(".json"))
-                }
-            }
-
-            if (rooms.isNotEmpty()) {
-                client.getMultipleFiles(path, rooms, object : Client.ResultCallback {
-                    override fun onSuccess(content: String) {
-                        processRoomMessage(path, content)
-                        if (path != "HideRoomInfo") loadRoomsFromClient(true)
-                    }
-                    override fun onFailure(error: String) { isLoading = false }
-                })
-            }
-        }.onFailure { isLoading = false }
-    }
-
-    private fun processRoomMessage(path: String, content: String) {
-        CoroutineScope(Dispatchers.IO).launch {
-            runCatching {
-                val result = JSONObject(content)
-                val isHideRoom = path == "HideRoomInfo"
-                val serverRoomIds = mutableListOf<String>()
-
-                result.keys().asSequence().forEach { key ->
-                    val roomJson = result.optString(key).takeIf { it.isNotBlank() } ?: return@forEach
-                    val roomInfo = parseRoomInfo(roomJson)
-                    serverRoomIds.add(roomInfo.id)
-
-                    if (!isHideRoom) processVisibleRoom(roomInfo)
-                    else processHideRoom(roomInfo)
-                }
-
-                if (isHideRoom) processRoomComparison(serverRoomIds, true)
-                else processRoomComparison(serverRoomIds, false)
-            }.onFailure {}
-        }
-    }
-
     private suspend fun processVisibleRoom(roomInfo: RoomInfo) {
         isLoading = false
         val localRoom = messageCacheManager.getRoomById(roomInfo.id)
@@ -857,197 +980,202 @@ class ChatRoom(
 
     private fun loadRoomMessages(roomId: String) {
         unsubscribeFromMessages()
+        historyJob?.cancel()
         currentRoomId = roomId
-        processedMessageIds.clear()
+        oldestCursor = null
+        hasMoreHistory = true
+        historyFromServer = false
         (chatAdapter as? ChatAdapterView.ChatAdapter)?.clearMessages()
 
-        CoroutineScope(Dispatchers.IO).launch {
-            val cachedMessages = messageCacheManager.loadCachedMessages(roomId)
-            val lastTimestamp = messageCacheManager.getLastMessageTime(roomId)
-            CoroutineScope(Dispatchers.Main).launch {
-                cachedMessages.forEach { message ->
-                    (chatAdapter as? ChatAdapterView.ChatAdapter)?.addMessageIfNotExists(message)
-                    chatRecyclerView?.scrollToPosition((chatAdapter?.itemCount ?: 1) - 1)
+        // 首屏只取最新一页, 更早的消息在滚动到顶部时再加载
+        historyJob = screenScope.launch {
+            val cachedMessages = messageCacheManager.loadMessagesPage(roomId, null, SBClient.HISTORY_PAGE_SIZE)
+            val after = if (cachedMessages.isNotEmpty()) {
+                if (cachedMessages.size < SBClient.HISTORY_PAGE_SIZE) historyFromServer = true
+                oldestCursor = SBClient.MessageCursor(cachedMessages.first().createdAt)
+                showHistoryPage(roomId, cachedMessages, scrollToEnd = true)
+                // 缓存只有时间没有游标 id, 同一时刻的消息由消息流去重
+                SBClient.MessageCursor(
+                    Iso8601Converter.toUtcZeroOffsetFormat(messageCacheManager.getLastMessageTime(roomId))
+                )
+            } else {
+                historyFromServer = true
+                fetchHistoryPage(roomId, scrollToEnd = true)
+                    ?: SBClient.MessageCursor(Iso8601Converter.nowAsUtcZeroOffset())
+            }
+            if (currentRoomId == roomId) subscribeToMessages(roomId, after)
+        }
+    }
+
+    private fun loadOlderMessages(roomId: String) {
+        if (!hasMoreHistory || historyJob?.isActive == true) return
+        historyJob = screenScope.launch {
+            if (!historyFromServer) {
+                val before = withContext(Dispatchers.Main) {
+                    (chatAdapter as? ChatAdapterView.ChatAdapter)?.firstMessage()
+                }
+                val older = messageCacheManager.loadMessagesPage(roomId, before, SBClient.HISTORY_PAGE_SIZE)
+                if (older.size < SBClient.HISTORY_PAGE_SIZE) historyFromServer = true
+                if (older.isNotEmpty()) {
+                    oldestCursor = SBClient.MessageCursor(older.first().createdAt)
+                    showHistoryPage(roomId, older, scrollToEnd = false)
+                    return@launch
                 }
             }
+            fetchHistoryPage(roomId, scrollToEnd = false)
+        }
+    }
 
-            if (cachedMessages.isEmpty() || lastTimestamp == 0L) {
-                loadExistingMessages(roomId)
-                startPollingMessages(roomId)
+    /**
+     * 窗口之后还有缓存中的消息时, 滚动到底部按页读回, 直到追上最新.
+     */
+    private fun loadNewerMessages(roomId: String) {
+        val adapter = chatAdapter as? ChatAdapterView.ChatAdapter ?: return
+        if (!adapter.hasNewer || historyJob?.isActive == true) return
+        historyJob = screenScope.launch {
+            val after = withContext(Dispatchers.Main) { adapter.lastMessage() } ?: return@launch
+            val newer = messageCacheManager.loadMessagesAfter(roomId, after, SBClient.HISTORY_PAGE_SIZE)
+            val caughtUp = newer.size < SBClient.HISTORY_PAGE_SIZE
+            withContext(Dispatchers.Main) {
+                if (currentRoomId == roomId) adapter.appendMessages(newer, caughtUp)
             }
-            else
-            {
-                startPollingMessages(roomId, Iso8601Converter.toUtcZeroOffsetFormat(lastTimestamp))
+            if (!caughtUp) return@launch
+            // 新消息先写缓存再判断 hasNewer, 追上之前写入的由这里补上, 之后的直接追加
+            val last = withContext(Dispatchers.Main) { adapter.lastMessage() } ?: return@launch
+            val missed = messageCacheManager.loadMessagesAfter(roomId, last, SBClient.HISTORY_PAGE_SIZE)
+            withContext(Dispatchers.Main) {
+                if (currentRoomId == roomId) adapter.appendMessages(missed)
             }
+        }
+    }
 
+    /**
+     * 丢弃当前窗口, 重新显示最新的一页, pending 为尚未进入缓存的本地消息.
+     */
+    private fun jumpToLatest(roomId: String, pending: Message? = null) {
+        historyJob?.cancel()
+        historyJob = screenScope.launch {
+            pending?.let { messageCacheManager.saveMessagesToCache(roomId, listOf(it)) }
+            val latest = messageCacheManager.loadMessagesPage(roomId, null, SBClient.HISTORY_PAGE_SIZE)
+            withContext(Dispatchers.Main) {
+                if (currentRoomId != roomId) return@withContext
+                (chatAdapter as? ChatAdapterView.ChatAdapter)?.clearMessages()
+                historyFromServer = latest.size < SBClient.HISTORY_PAGE_SIZE
+                hasMoreHistory = true
+                oldestCursor = latest.firstOrNull()?.let { SBClient.MessageCursor(it.createdAt) }
+            }
+            showHistoryPage(roomId, latest, scrollToEnd = true)
         }
     }
 
     /**
-     * 订阅消息: 功能不可用, 待SupaBase数据路完善RealTime后可使用
+     * 从服务器取 oldestCursor 之前的一页并写入缓存, 返回这一页中最新消息的游标, 失败或为空时返回 null.
      */
-    private fun subscribeToMessages(roomId: String) {
-        CoroutineScope(Dispatchers.IO).launch {
-            currentSubscription = launch {
-                try {
-                    SBClient.subscribeMessages(roomId).collect { message ->
-                        val processedMessage = withContext(Dispatchers.IO) {
-                            val sender = getUserInf(message.user_id)
-                            Message(
-                                message.id,
-                                "${sender.userName} (${message.user_id})",
-                                sender.userImage,
-                                message.content,
-                                message.created_at
-                            )
-                        }
+    private suspend fun fetchHistoryPage(roomId: String, scrollToEnd: Boolean): SBClient.MessageCursor? {
+        val page = try {
+            SBClient.fetchMessagesBefore(roomId, oldestCursor)
+        } catch (e: CancellationException) {
+            throw e
+        } catch (e: Exception) {
+            withContext(Dispatchers.Main) {
+                context.ShowToast("加载消息失败: ${e.message}")
+            }
+            return null
+        }
+        if (currentRoomId != roomId) return null
+        hasMoreHistory = page.hasMore
+        oldestCursor = page.next
+        if (page.messages.isEmpty()) return null
+
+        val messages = toMessages(page.messages)
+        messageCacheManager.saveMessagesToCache(roomId, messages)
+        showHistoryPage(roomId, messages, scrollToEnd)
+        return page.messages.last().let { SBClient.MessageCursor(it.created_at, it.id) }
+    }
 
-                        withContext(Dispatchers.Main) {
-                            if (currentRoomId == roomId) {
-                                (chatAdapter as? ChatAdapterView.ChatAdapter)?.addMessageIfNotExists(
-                                    processedMessage
-                                )
-                                chatRecyclerView?.scrollToPosition(
-                                    (chatAdapter?.itemCount ?: 1) - 1
-                                )
-                            }
-                            (chatAdapter as? ChatAdapterView.ChatAdapter)?.getMessages()?.let { messages ->
-                                messageCacheManager.saveMessagesToCache(roomId, messages)
-                            }
-                        }
-                    }
-                } catch (e: Exception) {
-                    if (currentRoomId == roomId) {
-                        withContext(Dispatchers.Main) {
-                            context.ShowToast("订阅消息失败: ${e.message}")
-                        }
-                    }
-                } finally {
-                    context.ShowToast("订阅消息结束")
-                }
+    private suspend fun showHistoryPage(roomId: String, messages: List<Message>, scrollToEnd: Boolean) {
+        withContext(Dispatchers.Main) {
+            if (currentRoomId != roomId) return@withContext
+            val layoutManager = chatRecyclerView?.layoutManager as? LinearLayoutManager
+            val first = layoutManager?.findFirstVisibleItemPosition() ?: 0
+            val offset = layoutManager?.findViewByPosition(first)?.top ?: 0
+            val inserted = (chatAdapter as? ChatAdapterView.ChatAdapter)?.prependMessages(messages) ?: 0
+            if (scrollToEnd) {
+                chatRecyclerView?.scrollToPosition((chatAdapter?.itemCount ?: 1) - 1)
+                screenScope.launch { markRoomRead(roomId, messages.lastOrNull()) }
+            } else if (inserted > 0 && first > 0) {
+                // 保持当前可见的消息不动
+                layoutManager?.scrollToPositionWithOffset(first + inserted, offset)
             }
         }
     }
 
-    private fun startPollingMessages(roomId: String, sinceTimestamp: String = "") {
+    /**
+     * 订阅房间消息: Realtime 推送, 断线后自动补齐; Realtime 不可用时由消息流自身降级为轮询
+     */
+    private fun subscribeToMessages(roomId: String, after: SBClient.MessageCursor?) {
         unsubscribeFromMessages()
-        lastPollingTimeZone = sinceTimestamp
-        pollingJob = CoroutineScope(Dispatchers.IO).launch {
-            while (isActive && currentRoomId == roomId) {
-                try {
-                    val messageIds = SBClient.fetchMessageId(roomId, lastPollingTimeZone)
-
-                    if (messageIds.isNotEmpty()) {
-                        val newMessages = mutableListOf<SBClient.Message>()
-
-                        messageIds.forEach { messageIdObj ->
-                            var lastMessage = messageCacheManager.getLastMessage(roomId)
-                            if (lastMessage == null) {
-                                lastMessage = (chatAdapter as? ChatAdapterView.ChatAdapter)?.getMessages()?.first()
-                            }
-                            if (lastMessage!!.id != messageIdObj.id) {
-                                val messages = SBClient.fetchMessages(messageIdObj.id, roomId)
-                                newMessages.addAll(messages)
-
-                                processedMessageIds.add(messageIdObj.id)
-                            }
-                        }
-
-                        if (newMessages.isNotEmpty()) {
-                            withContext(Dispatchers.Main) {
-                                processNewMessages(roomId, newMessages)
-                            }
-                        }
-                    }
-
-                    delay(3000L)
-                } catch (e: Exception) {
+        messageSubscription = screenScope.launch {
+            try {
+                SBClient.subscribeMessages(roomId, after).collect { dbMessages ->
+                    if (currentRoomId == roomId) processNewMessages(roomId, dbMessages)
+                }
+            } catch (e: CancellationException) {
+                throw e
+            } catch (e: Exception) {
+                if (currentRoomId == roomId) {
                     withContext(Dispatchers.Main) {
-                        context.ShowToast("轮询消息失败: $e")
+                        context.ShowToast("订阅消息失败: ${e.message}")
                     }
-                    delay(5000L)
                 }
             }
         }
     }
 
-    private fun processNewMessages(roomId: String, messages: List<SBClient.Message>) {
-        CoroutineScope(Dispatchers.IO).launch {
-            messages.forEach { dbMessage ->
-                val sender = getUserInf(dbMessage.user_id)
-                val message = Message(
-                    dbMessage.id,
-                    "${sender.userName} (${dbMessage.user_id})",
-                    sender.userImage,
-                    dbMessage.content,
-                     dbMessage.created_at
-                )
-                withContext(Dispatchers.Main) {
-                    (chatAdapter as? ChatAdapterView.ChatAdapter)?.addMessageIfNotExists(message)
-                    chatRecyclerView?.scrollToPosition((chatAdapter?.itemCount ?: 1) - 1)
-                }
-                lastPollingTimeZone = Iso8601Converter.toUtcZeroOffsetFormat(dbMessage.created_at)
-                messageCacheManager.saveSingleMessage(roomId, message, Iso8601Converter.toUtcZeroOffsetTimestamp(dbMessage.created_at))
-            }
+    private suspend fun toMessages(dbMessages: List<SBClient.Message>): List<Message> {
+        // 一页消息的发送者一次查询取回, 绑定前填满用户缓存
+        userCacheManager.prefetchUsers(dbMessages.map { it.user_id })
+        val senders = dbMessages.map { it.user_id }.distinct().associateWith { getUserInf(it) }
+        return dbMessages.map { dbMessage ->
+            val sender = senders.getValue(dbMessage.user_id)
+            val isImage = dbMessage.content_type == SBClient.CONTENT_TYPE_IMAGE
+            Message(
+                dbMessage.id,
+                "${sender.userName} (${dbMessage.user_id})",
+                sender.userImage,
+                if (isImage) dbMessage.thumbnail.orEmpty() else dbMessage.content,
+                dbMessage.created_at,
+                if (isImage) Message.TYPE_IMAGE else Message.TYPE_TEXT
+            )
         }
     }
 
-    private suspend fun loadExistingMessages(roomId: String) {
-        try {
-            val messageIds = withContext(Dispatchers.IO) {
-                SBClient.fetchMessageId(roomId)
-            }
-
-            processedMessageIds.clear()
-
-            if (messageIds.isNotEmpty()) {
-                val allMessages = withContext(Dispatchers.IO) {
-                    SBClient.fetchMessages(roomId)
-                }
-
-                messageIds.forEach { messageId ->
-                    processedMessageIds.add(messageId.id)
-                }
-
-                allMessages.forEach { dbMessage ->
-                    val sender = getUserInf(dbMessage.user_id)
-                    val message = Message(
-                        dbMessage.id,
-                        "${sender.userName} (${dbMessage.user_id})",
-                        sender.userImage,
-                        dbMessage.content,
-                        dbMessage.created_at
-                    )
-                    lastPollingTimeZone = Iso8601Converter.toUtcZeroOffsetFormat(dbMessage.created_at)
-                    if (currentRoomId == roomId) {
-                        withContext(Dispatchers.Main) {
-                            (chatAdapter as? ChatAdapterView.ChatAdapter)?.addMessageIfNotExists(message)
-                        }
-                    }
-                }
-            }
-        } catch (e: Exception) {
-            withContext(Dispatchers.Main) {
-                context.ShowToast("加载消息失败: ${e.message}")
-            }
+    private suspend fun processNewMessages(roomId: String, dbMessages: List<SBClient.Message>) {
+        val messages = toMessages(dbMessages)
+        // 先写缓存: 窗口不在最新处时新消息只进缓存, 滚动到底部时再读出
+        messageCacheManager.saveMessagesToCache(roomId, messages)
+        withContext(Dispatchers.Main) {
+            if (currentRoomId != roomId) return@withContext
+            val adapter = chatAdapter as? ChatAdapterView.ChatAdapter ?: return@withContext
+            if (adapter.hasNewer) return@withContext
+            adapter.appendMessages(messages)
+            chatRecyclerView?.scrollToPosition((chatAdapter?.itemCount ?: 1) - 1)
         }
+        if (currentRoomId == roomId) markRoomRead(roomId, messages.lastOrNull())
     }
 
     private fun unsubscribeFromMessages() {
-        /**
-         * 取消轮询, SupaBase RealTime未实现
-         */
-        pollingJob?.cancel()
-        pollingJob = null
-        processedMessageIds.clear()
-
-        /**
-         * 取消订阅
-         */
         messageSubscription?.cancel()
         messageSubscription = null
-        currentSubscription?.cancel()
-        currentSubscription = null
     }
 
-}
\ No newline at end of file
+    companion object {
+        private const val TAG = "ChatRoom"
+        private const val ROOM_FETCH_PARALLELISM = 8
+        private const val ROOM_FETCH_TIMEOUT_MS = 15_000L
+        private const val THUMBNAIL_SIZE = 240
+        private const val ACTIVITY_LOOKBACK_MS = 7 * 24 * 60 * 60 * 1000L
+        private const val ACTIVITY_RETRY_MIN_MS = 5_000L
+        private const val ACTIVITY_RETRY_MAX_MS = 60_000L
+    }
+}
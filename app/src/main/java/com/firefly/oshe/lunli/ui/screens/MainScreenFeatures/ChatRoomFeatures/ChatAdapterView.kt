@@ -5,6 +5,7 @@ import android.graphics.Bitmap
 import android.graphics.Color
 import android.os.Handler
 import android.os.Looper
+import android.util.LruCache
 import android.view.ViewGroup
 import android.widget.FrameLayout
 import android.widget.ImageView
@@ -30,16 +31,31 @@ import android.widget.LinearLayout.VERTICAL
 import com.firefly.oshe.lunli.Tools.ShowToast
 import com.firefly.oshe.lunli.ui.dialog.crop.CropDialog
 import com.firefly.oshe.lunli.utils.Iso8601Converter
+import kotlinx.coroutines.CancellationException
+import kotlinx.coroutines.CoroutineScope
+import kotlinx.coroutines.Dispatchers
+import kotlinx.coroutines.launch
+import kotlinx.coroutines.withContext
 import java.io.File
 import java.io.FileOutputStream
 import java.text.SimpleDateFormat
 import java.util.Date
 import java.util.Locale
 
-class ChatAdapterView {
+class ChatAdapterView(
+    // 原图加载在调用方界面的作用域中执行, 界面销毁时随之取消
+    private val scope: CoroutineScope,
+    private val loadImage: suspend (message: Message) -> Bitmap? = { null }
+) {
 
     private val messages = mutableListOf<Message>()
     private var adapter: ChatAdapter? = null
+
+    // 已加载的原图, 按字节数限制大小; 正在加载的消息 id 只在主线程读写
+    private val attachments = object : LruCache<String, Bitmap>(ATTACHMENT_CACHE_BYTES) {
+        override fun sizeOf(key: String, value: Bitmap) = value.byteCount
+    }
+    private val loadingAttachments = mutableSetOf<String>()
     private val base64 = Ciallo().ciallo // 注意: 禁止尝试打开这个类, 除非你想你的IDE爆炸!!!
     private val systemMessages = listOf(
         Message(
@@ -87,6 +103,13 @@ class ChatAdapterView {
 
     fun getMessages(): List<Message> = messages.toList()
 
+    /**
+     * 自己发送的图片已有原图, 直接放入缓存, 不必再下载.
+     */
+    fun cacheAttachment(messageId: String, bitmap: Bitmap) {
+        attachments.put(messageId, bitmap)
+    }
+
     private fun ImagePreview(context: Context, bitmap: Bitmap, view: View) {
         val cropDialog = CropDialog(context)
         cropDialog.setButtonText(confirm = "保存")
@@ -136,16 +159,28 @@ class ChatAdapterView {
         abstract fun addMessage(message: Message)
     }
 
+    /**
+     * 只在内存中保留视口附近最多 WINDOW_SIZE 条消息, 其余的留在缓存中, 滚动到窗口边缘时再按页读回.
+     */
     inner class ChatAdapter : BaseChatAdapter() {
 
+        // 窗口之后 (更新的一侧) 还有未载入的消息, 此时新消息不直接追加
+        var hasNewer: Boolean = false
+            private set
+
+        // 窗口开头的消息被丢弃时回调, 之后向上翻页要重新从缓存读
+        var onTrimmedStart: (() -> Unit)? = null
+
         override fun addMessage(message: Message) {
             messages.add(message)
             notifyItemInserted(messages.size - 1)
+            trimStart()
         }
 
         fun clearMessages() {
             messages.clear()
             messages.addAll(systemMessages)
+            hasNewer = false
             notifyDataSetChanged()
         }
 
@@ -155,8 +190,77 @@ class ChatAdapterView {
             }
         }
 
+        /**
+         * 把更早的一页消息插到系统消息之后, 已存在的 id 会被跳过, 返回实际插入的条数.
+         * 超出窗口时丢弃最新一侧的消息.
+         */
+        fun prependMessages(older: List<Message>): Int {
+            val existing = messages.mapTo(HashSet()) { it.id }
+            val fresh = older.filter { existing.add(it.id) }
+            if (fresh.isEmpty()) return 0
+            val start = systemCount()
+            messages.addAll(start, fresh)
+            notifyItemRangeInserted(start, fresh.size)
+            trimEnd()
+            return fresh.size
+        }
+
+        /**
+         * 在末尾追加一页更新的消息, 已存在的 id 会被跳过; 超出窗口时丢弃最旧一侧的消息.
+         * caughtUp 表示已追到最新, 之后的新消息可以直接追加.
+         */
+        fun appendMessages(newer: List<Message>, caughtUp: Boolean = true) {
+            val existing = messages.mapTo(HashSet()) { it.id }
+            val fresh = newer.filter { existing.add(it.id) }
+            if (fresh.isNotEmpty()) {
+                val start = messages.size
+                messages.addAll(fresh)
+                notifyItemRangeInserted(start, fresh.size)
+                trimStart()
+            }
+            if (caughtUp) hasNewer = false
+        }
+
+        fun firstMessage(): Message? = messages.getOrNull(systemCount())
+
+        fun lastMessage(): Message? = if (messages.size > systemCount()) messages.last() else null
+
+        private fun systemCount(): Int {
+            return messages.takeWhile { message -> systemMessages.any { it.id == message.id } }.size
+        }
+
+        private fun trimStart() {
+            val start = systemCount()
+            val overflow = messages.size - start - WINDOW_SIZE
+            if (overflow <= 0) return
+            messages.subList(start, start + overflow).clear()
+            notifyItemRangeRemoved(start, overflow)
+            onTrimmedStart?.invoke()
+        }
+
+        private fun trimEnd() {
+            val overflow = messages.size - systemCount() - WINDOW_SIZE
+            if (overflow <= 0) return
+            val end = messages.size - overflow
+            messages.subList(end, messages.size).clear()
+            notifyItemRangeRemoved(end, overflow)
+            hasNewer = true
+        }
+
         fun getMessages(): List<Message> = messages.toList()
 
+        /**
+         * 房间列表中显示的消息预览: 图片显示为 [图片], 文本取第一行非空内容.
+         */
+        fun previewText(message: Message): String {
+            val content = message.content
+            if (message.contentType == Message.TYPE_IMAGE || detectContentType(content) != ContentType.TEXT) {
+                return "[图片]"
+            }
+            val line = content.lineSequence().map { it.trim() }.firstOrNull { it.isNotEmpty() }.orEmpty()
+            return if (line.length > PREVIEW_LENGTH) line.take(PREVIEW_LENGTH) + "…" else line
+        }
+
         private fun detectContentType(content: String): ContentType {
             return when {
                 isPrefixedBase64Image(content) -> ContentType.IMAGE_BASE64
@@ -220,6 +324,43 @@ class ChatAdapterView {
             }
         }
 
+        /**
+         * 图片消息先显示缩略图 (从旧的内联图片迁移来的消息没有缩略图), 绑定时再按需加载原图, 加载后刷新该条消息.
+         */
+        private fun renderAttachment(container: FrameLayout, message: Message) {
+            val thumbnail = message.content.takeIf { it.isNotEmpty() }?.let { ImageUtils.base64ToBitmap(it) }
+            val imageView = ShapeableImageView(container.context).apply {
+                layoutParams = LayoutParams(WRAP_CONTENT, WRAP_CONTENT)
+                scaleType = CENTER_CROP
+                adjustViewBounds = true
+                setImageBitmap(attachments.get(message.id) ?: thumbnail)
+
+                setOnClickListener {
+                    val bitmap = attachments.get(message.id) ?: thumbnail ?: return@setOnClickListener
+                    ImagePreview(context, bitmap, this)
+                }
+            }
+            container.addView(imageView)
+
+            if (attachments.get(message.id) != null || !loadingAttachments.add(message.id)) return
+            scope.launch(Dispatchers.IO) {
+                val bitmap = try {
+                    loadImage(message)
+                } catch (e: CancellationException) {
+                    throw e
+                } catch (e: Exception) {
+                    null
+                }
+                withContext(Dispatchers.Main) {
+                    loadingAttachments.remove(message.id)
+                    if (bitmap == null) return@withContext
+                    attachments.put(message.id, bitmap)
+                    val index = messages.indexOfFirst { it.id == message.id }
+                    if (index != -1) notifyItemChanged(index)
+                }
+            }
+        }
+
         private fun renderImageUrl(container: FrameLayout, imageUrl: String) {
             val imageView = ShapeableImageView(container.context).apply {
                 layoutParams = LayoutParams(WRAP_CONTENT, WRAP_CONTENT)
@@ -355,6 +496,11 @@ class ChatAdapterView {
 
             contentContainer.removeAllViews()
 
+            if (message.contentType == Message.TYPE_IMAGE) {
+                renderAttachment(contentContainer, message)
+                return
+            }
+
             when (detectContentType(message.content)) {
                 ContentType.IMAGE_BASE64 -> {
                     renderBase64Image(contentContainer, message.content)
@@ -370,4 +516,10 @@ class ChatAdapterView {
 
         override fun getItemCount() = messages.size
     }
+
+    companion object {
+        private const val PREVIEW_LENGTH = 50
+        private const val WINDOW_SIZE = 200
+        private const val ATTACHMENT_CACHE_BYTES = 32 * 1024 * 1024
+    }
 }
\ No newline at end of file
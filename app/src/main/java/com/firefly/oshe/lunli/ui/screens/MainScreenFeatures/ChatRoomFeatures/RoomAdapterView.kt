@@ -29,6 +29,9 @@ import kotlinx.coroutines.CoroutineScope
 import kotlinx.coroutines.Dispatchers
 import kotlinx.coroutines.launch
 import okhttp3.internal.notify
+import java.text.SimpleDateFormat
+import java.util.Date
+import java.util.Locale
 import kotlin.collections.mutableListOf
 
 class RoomAdapterView(
@@ -42,6 +45,7 @@ class RoomAdapterView(
 ) {
 
     private val rooms = mutableListOf<RoomInfo>()
+    private val activities = mutableMapOf<String, MessageCacheManager.RoomActivity>()
     private var adapter: RoomAdapter? = null
     private var isAddNewRoom: Boolean = true
 
@@ -91,6 +95,17 @@ class RoomAdapterView(
 
     fun getRooms(): List<RoomInfo> = rooms.toList()
 
+    /**
+     * 更新房间的未读数与最新消息预览, 只刷新有变化的行.
+     */
+    fun updateActivities(updated: List<MessageCacheManager.RoomActivity>) {
+        updated.forEach { activity ->
+            if (activities.put(activity.roomId, activity) == activity) return@forEach
+            val index = rooms.indexOfFirst { it.id == activity.roomId }
+            if (index != -1) adapter?.notifyItemChanged(index)
+        }
+    }
+
     fun clearRooms() {
         rooms.clear()
         adapter?.notifyDataSetChanged()
@@ -154,6 +169,16 @@ class RoomAdapterView(
             }
             root.addView(messageView)
 
+            val activityView = TextView(context).apply {
+                id = R.id.room_activity
+                textSize = 13f
+                setTextColor(Color.GRAY)
+                setPadding(0, 4.dp, 0, 0)
+                maxLines = 1
+                ellipsize = TextUtils.TruncateAt.END
+            }
+            root.addView(activityView)
+
             val dividing = View(context).apply {
                 setBackgroundColor(Color.LTGRAY)
                 layoutParams = LayoutParams(MATCH_PARENT, 1.dp).apply {
@@ -172,11 +197,18 @@ class RoomAdapterView(
             val RoomTitle = rootView.findViewById<TextView>(R.id.room_title)
             val RoomCreator = rootView.findViewById<TextView>(R.id.room_creator)
             val RoomMessage = rootView.findViewById<TextView>(R.id.room_message)
+            val RoomActivity = rootView.findViewById<TextView>(R.id.room_activity)
 
             RoomTitle.text = room.title
             RoomCreator.text = "创建者: ${room.creator}"
             RoomMessage.text = room.roomMessage
 
+            val activity = activities[room.id]
+            val activityText = activity?.let { formatActivity(it) }.orEmpty()
+            RoomActivity.text = activityText
+            RoomActivity.visibility = if (activityText.isEmpty()) View.GONE else View.VISIBLE
+            RoomActivity.setTextColor(if ((activity?.unreadCount ?: 0) > 0) Color.RED else Color.GRAY)
+
             CoroutineScope(Dispatchers.Main).launch {
                 val isHideRoom = messageCacheManager.getRoomsByVisibility(true).any { it.id == room.id }
 
@@ -234,6 +266,17 @@ class RoomAdapterView(
         override fun getItemCount() = rooms.size
     }
 
+    private fun formatActivity(activity: MessageCacheManager.RoomActivity): String {
+        val parts = mutableListOf<String>()
+        if (activity.unreadCount > 0) {
+            parts.add(if (activity.unreadCount > 99) "[99+ 条未读]" else "[${activity.unreadCount} 条未读]")
+        }
+        if (activity.preview.isNotEmpty()) parts.add(activity.preview)
+        if (parts.isEmpty()) return ""
+        val time = SimpleDateFormat("MM-dd HH:mm", Locale.getDefault()).format(Date(activity.lastMessageAt))
+        return parts.joinToString(" ") + " · " + time
+    }
+
     private fun detectRoomPassword(room: RoomInfo, callback: (Boolean) -> Unit) {
         if (room.roomPassword.equals("Null")) {
             callback(true)
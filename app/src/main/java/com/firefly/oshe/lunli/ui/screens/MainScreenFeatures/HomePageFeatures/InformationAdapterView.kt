@@ -68,7 +68,7 @@ class InformationAdapterView(
     private lateinit var client: Client
 
     fun createAdapter(): UserHomeAdapter {
-        client = Client(context)
+        client = Client.getInstance(context)
         information.addAll(listOf(
             UserInformation(
                 userData.userId,
@@ -545,12 +545,8 @@ class InformationAdapterView(
     }
 
     private fun updateSBClientUserMessage(data: UserInformation, callBack: (Boolean) -> Unit = {}) {
-        SBClient.updateUser(data.userId, data.userName, data.userImage) {
-            if (!it) {
-                callBack(false)
-            } else {
-                callBack(true)
-            }
+        CoroutineScope(Dispatchers.Main).launch {
+            callBack(SBClient.updateUser(data.userId, data.userName, data.userImage))
         }
     }
 
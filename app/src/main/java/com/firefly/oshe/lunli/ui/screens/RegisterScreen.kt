@@ -152,7 +152,7 @@ class RegisterScreen(
     }
 
     private fun fallbackToClientCheck(UserName: String, UserId: String, UserPWD: String) {
-        client = Client(context)
+        client = Client.getInstance(context)
 
         val progressDialog: AlertDialog = MaterialAlertDialogBuilder(context)
             .setView(LinearLayout(context).apply {
@@ -199,7 +199,7 @@ class RegisterScreen(
     }
 
     private fun createUDFromClient(UserName: String, UserId: String, UserPWD: String, progressDialog: AlertDialog) {
-        client = Client(context)
+        client = Client.getInstance(context)
         val userData = UserData(UserId, UserName, UserPWD)
         val userMap = mapOf(UserId to userData)
         val message = try {
@@ -218,11 +218,13 @@ class RegisterScreen(
                         val image = drawable?.let { ImageUtils.drawableToBase64(it) }
                         if (image != null) {
                             // 同时在 SBClient 创建用户（UID, Name, Image）
-                            SBClient.createUser(
-                                UserId,
-                                UserName,
-                                image
-                            )
+                            CoroutineScope(Dispatchers.IO).launch {
+                                SBClient.createUser(
+                                    UserId,
+                                    UserName,
+                                    image
+                                )
+                            }
                             onRegisterSuccess(UserName, UserId, UserPWD, image)
                         } else {
                             context.ShowToast("资源创建失败, 请联系管理人员")
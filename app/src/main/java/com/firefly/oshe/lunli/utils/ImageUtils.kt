@@ -149,6 +149,15 @@ object ImageUtils {
         return Bitmap.createScaledBitmap(bitmap, newWidth, newHeight, true)
     }
 
+    /**
+     * 生成缩略图, 长边不超过maxSize, 不放大
+     */
+    fun thumbnailBitmap(bitmap: Bitmap, maxSize: Int): Bitmap {
+        val longest = maxOf(bitmap.width, bitmap.height)
+        if (longest <= maxSize) return bitmap
+        return scaleBitmapByRatio(bitmap, maxSize.toFloat() / longest)
+    }
+
     /**
      * 裁剪Bitmap
      */
@@ -265,6 +274,18 @@ object ImageUtils {
         }
     }
 
+    /**
+     * 将Base64字符串解码为原始字节
+     */
+    fun base64ToBytes(base64String: String): ByteArray? {
+        return try {
+            Base64.decode(extractPureBase64(base64String), Base64.DEFAULT)
+        } catch (e: Exception) {
+            e.printStackTrace()
+            null
+        }
+    }
+
     /**
      * 将Drawable转换为Base64
      */
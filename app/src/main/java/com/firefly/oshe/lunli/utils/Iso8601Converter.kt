@@ -35,6 +35,22 @@ object Iso8601Converter {
         return parseToTimestamp(isoString)
     }
 
+    /**
+     * 保留微秒精度的解析, 无法解析时返回 null
+     */
+    fun parseInstant(isoString: String): java.time.Instant? {
+        val normalized = preprocessTimeString(isoString.trim().replace(' ', 'T'))
+        return try {
+            java.time.OffsetDateTime.parse(normalized).toInstant()
+        } catch (e: Exception) {
+            try {
+                java.time.Instant.parse(normalized)
+            } catch (e2: Exception) {
+                null
+            }
+        }
+    }
+
     fun nowAsUtcZeroOffsetTimestamp(): Long {
         return System.currentTimeMillis()
     }